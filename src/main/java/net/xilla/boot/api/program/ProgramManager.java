@@ -6,6 +6,7 @@ import net.xilla.boot.XillaApplication;
 import net.xilla.boot.reflection.ObjectProcessor;
 import net.xilla.boot.storage.file.FileLoader;
 import net.xilla.boot.storage.manager.Manager;
+import net.xilla.boot.storage.manager.StorageBudget;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,6 +38,9 @@ public class ProgramManager {
     @Getter
     private Map<String, Manager> nameManagerMap = new ConcurrentHashMap<>();
 
+    @Getter
+    private StorageBudget storageBudget = null;
+
     // Constructor, duh
 
     public ProgramManager() {
@@ -63,6 +67,24 @@ public class ProgramManager {
 
         classManagerMap.put(manager.getClazz(), manager);
         nameManagerMap.put(manager.getName(), manager);
+        if(storageBudget != null) storageBudget.register(manager);
+    }
+
+    /***
+     * Shares a number of bytes between the loaded objects of all
+     * managers, including the ones registered later. Objects are
+     * weighed by their estimated size and the coldest are evicted
+     * once the managers weigh more together.
+     *
+     * @param maximumBytes Bytes to share, 0 to remove the budget
+     */
+    public void setStorageBudget(long maximumBytes) {
+        StorageBudget previous = storageBudget;
+        storageBudget = maximumBytes > 0 ? new StorageBudget(maximumBytes) : null;
+        for(Manager manager : nameManagerMap.values()) {
+            if(previous != null) previous.unregister(manager);
+            if(storageBudget != null) storageBudget.register(manager);
+        }
     }
 
     public <T> Manager createManager(Class<T> object, FileLoader loader) {
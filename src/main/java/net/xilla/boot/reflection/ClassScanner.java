@@ -4,12 +4,20 @@ import net.xilla.boot.Logger;
 import net.xilla.boot.api.program.ProgramManager;
 import net.xilla.boot.api.program.StartupPriority;
 import net.xilla.boot.reflection.annotation.CacheManager;
+import net.xilla.boot.reflection.annotation.BTreeManager;
+import net.xilla.boot.reflection.annotation.BinaryManager;
 import net.xilla.boot.reflection.annotation.JsonFolderManager;
+import net.xilla.boot.reflection.annotation.LogManager;
 import net.xilla.boot.reflection.annotation.StartPriority;
 import net.xilla.boot.reflection.annotation.JsonManager;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.loader.BTreeLoader;
+import net.xilla.boot.storage.file.loader.BinaryLoader;
 import net.xilla.boot.storage.file.loader.CacheLoader;
 import net.xilla.boot.storage.file.loader.JsonFolderLoader;
 import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.boot.storage.file.loader.LogLoader;
+import net.xilla.boot.storage.file.loader.ShardedJsonLoader;
 import net.xilla.boot.storage.manager.Manager;
 import org.reflections.Reflections;
 import org.reflections.scanners.SubTypesScanner;
@@ -36,6 +44,9 @@ public class ClassScanner {
         loadCheckManager();
         loadManagerCheck();
         loadJsonManagerCheck();
+        loadLogManagerCheck();
+        loadBinaryManagerCheck();
+        loadBTreeManagerCheck();
     }
 
     public void load() {
@@ -89,7 +100,11 @@ public class ClassScanner {
             if(annotations.length > 0){
                 System.out.println("Loading json file manager! " + clazz);
                 JsonManager annotation = (JsonManager) annotations[0];
-                Manager manager = new Manager(clazz, new JsonLoader(annotation.fileName()));
+                // Going back to one shard still needs the sharded loader to move the old shards
+                FileLoader loader = annotation.shards() > 1 || ShardedJsonLoader.isSharded(annotation.fileName())
+                        ? new ShardedJsonLoader(annotation.fileName(), annotation.shards(), annotation.mapped(), annotation.compressed())
+                        : new JsonLoader(annotation.fileName(), annotation.mapped(), annotation.compressed());
+                Manager manager = new Manager(clazz, loader);
                 programManager.registerManager(manager, getPriority(clazz));
                 return true;
             }
@@ -97,7 +112,52 @@ public class ClassScanner {
             if(annotations.length > 0) {
                 System.out.println("Loading json folder manager! " + clazz);
                 JsonFolderManager annotation = (JsonFolderManager) annotations[0];
-                Manager manager = new Manager(clazz, new JsonFolderLoader(annotation.folderName()));
+                JsonFolderLoader loader = new JsonFolderLoader(annotation.folderName(), annotation.lazy(), annotation.readingThreads(), annotation.layout());
+                loader.setPacked(annotation.pack());
+                loader.setCompressed(annotation.compressed());
+                Manager manager = new Manager(clazz, loader);
+                programManager.registerManager(manager, getPriority(clazz));
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void loadLogManagerCheck() {
+        scans.add(clazz -> {
+            Annotation[] annotations = clazz.getAnnotationsByType(LogManager.class);
+            if(annotations.length > 0) {
+                System.out.println("Loading log manager! " + clazz);
+                LogManager annotation = (LogManager) annotations[0];
+                Manager manager = new Manager(clazz, new LogLoader(annotation.folderName(), annotation.segmentSize()));
+                programManager.registerManager(manager, getPriority(clazz));
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void loadBinaryManagerCheck() {
+        scans.add(clazz -> {
+            Annotation[] annotations = clazz.getAnnotationsByType(BinaryManager.class);
+            if(annotations.length > 0) {
+                System.out.println("Loading binary manager! " + clazz);
+                BinaryManager annotation = (BinaryManager) annotations[0];
+                Manager manager = new Manager(clazz, new BinaryLoader(annotation.fileName()));
+                programManager.registerManager(manager, getPriority(clazz));
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void loadBTreeManagerCheck() {
+        scans.add(clazz -> {
+            Annotation[] annotations = clazz.getAnnotationsByType(BTreeManager.class);
+            if(annotations.length > 0) {
+                System.out.println("Loading b-tree manager! " + clazz);
+                BTreeManager annotation = (BTreeManager) annotations[0];
+                Manager manager = new Manager(clazz, new BTreeLoader(annotation.fileName(), annotation.cachePages()));
                 programManager.registerManager(manager, getPriority(clazz));
                 return true;
             }
@@ -4,15 +4,17 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.google.gson.reflect.TypeToken;
 import net.xilla.boot.Logger;
 import net.xilla.boot.XillaAPI;
 import net.xilla.boot.XillaApplication;
 import net.xilla.boot.reflection.annotation.Ignored;
+import net.xilla.boot.reflection.annotation.Indexed;
 import net.xilla.boot.storage.manager.Manager;
 
 import java.lang.reflect.*;
-import java.util.List;
+import java.util.*;
 
 /**
  * The object processor contains all the serialization methods needed for objects
@@ -133,22 +135,7 @@ public class ObjectProcessor {
             try {
                 if (!isIgnored(field)) {
                     field.setAccessible(true);
-                    if (loadFromManager(field)) {
-                        String data = getName(obj);
-                        json.addProperty(getStorageName(field), data);
-                    } else {
-                        Object fieldValue = pullField(field, obj);
-                        if (fieldValue instanceof List<?>) {
-                            // Handle lists explicitly
-                            ParameterizedType listType = (ParameterizedType) field.getGenericType();
-                            Class<?> listGenericType = (Class<?>) listType.getActualTypeArguments()[0];
-                            JsonElement data = gson.toJsonTree(fieldValue, TypeToken.getParameterized(List.class, listGenericType).getType());
-                            json.add(getStorageName(field), data);
-                        } else {
-                            JsonElement data = gson.toJsonTree(fieldValue);
-                            json.add(getStorageName(field), data);
-                        }
-                    }
+                    json.add(getStorageName(field), pullFieldJson(field, obj));
                 }
             } catch (Exception exception) {
                 System.out.println("Failed to load FIELD " + field + " for OBJ " + obj);
@@ -157,6 +144,218 @@ public class ObjectProcessor {
         }
     }
 
+    /**
+     * Converts the value of a single field the way it is stored.
+     *
+     * @param field
+     * @param obj
+     * @return
+     * @throws IllegalAccessException
+     */
+    private static JsonElement pullFieldJson(Field field, Object obj) throws IllegalAccessException {
+        if (loadFromManager(field)) {
+            return new JsonPrimitive(getName(obj));
+        }
+        Object fieldValue = pullField(field, obj);
+        if (fieldValue instanceof List<?>) {
+            // Handle lists explicitly
+            ParameterizedType listType = (ParameterizedType) field.getGenericType();
+            Class<?> listGenericType = (Class<?>) listType.getActualTypeArguments()[0];
+            return gson.toJsonTree(fieldValue, TypeToken.getParameterized(List.class, listGenericType).getType());
+        }
+        return gson.toJsonTree(fieldValue);
+    }
+
+    /**
+     * Lists the stored names of the fields annotated with Indexed.
+     *
+     * @param clazz Class to look at
+     * @return Names of the indexed fields, empty if there are none
+     */
+    public static List<String> getIndexedFields(Class<?> clazz) {
+        List<String> fields = new ArrayList<>();
+        for (Field field : clazz.getDeclaredFields()) {
+            if (!isIgnored(field) && field.isAnnotationPresent(Indexed.class)) {
+                fields.add(getStorageName(field));
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Pulls only the indexed fields of an object, converted the same
+     * way as they are stored, so they match the values in its json.
+     *
+     * @param object Object to pull from
+     * @param clazz Class of the object
+     * @return Stored name and value of every indexed field
+     */
+    public static <T> Map<String, JsonElement> pullIndexedFields(T object, Class<T> clazz) {
+        Map<String, JsonElement> values = new HashMap<>();
+        for (Field field : clazz.getDeclaredFields()) {
+            if (isIgnored(field) || !field.isAnnotationPresent(Indexed.class)) continue;
+            try {
+                values.put(getStorageName(field), pullFieldJson(field, object));
+            } catch (Exception exception) {
+                Logger.error("Failed to index field " + field);
+                exception.printStackTrace();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Converts a value the way a field holding it is stored.
+     *
+     * @param value
+     * @return
+     */
+    public static JsonElement toJsonTree(Object value) {
+        return gson.toJsonTree(value);
+    }
+
+    /**
+     * Estimates the heap an object holds on to, walking its fields the
+     * way they would be serialized. Objects kept by another manager are
+     * only referenced, so they aren't counted. Classes of the jdk are
+     * counted by their own size without looking inside, except strings,
+     * arrays and collections.
+     *
+     * @param object Object to measure
+     * @return Estimated size in bytes
+     */
+    public static long estimateSize(Object object) {
+        if (object == null) return 0;
+        Map<Object, Boolean> seen = new IdentityHashMap<>();
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(object);
+
+        long size = 0;
+        while (!pending.isEmpty()) {
+            Object current = pending.pop();
+            if (seen.put(current, Boolean.TRUE) != null) continue;
+            if (current != object && isManaged(current.getClass())) continue;
+            size += shallowSize(current, pending);
+        }
+        return size;
+    }
+
+    /**
+     * Size of an object without the objects it references,
+     * which are added to the pending objects.
+     *
+     * @param object
+     * @param pending
+     * @return
+     */
+    private static long shallowSize(Object object, Deque<Object> pending) {
+        Class<?> type = object.getClass();
+        if (object instanceof String) {
+            // The string and its byte array
+            return align(OBJECT_HEADER + 12) + align(ARRAY_HEADER + ((String) object).length());
+        }
+        if (type.isArray()) {
+            int length = Array.getLength(object);
+            Class<?> component = type.getComponentType();
+            if (component.isPrimitive()) {
+                return align(ARRAY_HEADER + (long) fieldSize(component) * length);
+            }
+            for (Object element : (Object[]) object) {
+                if (element != null) pending.push(element);
+            }
+            return align(ARRAY_HEADER + (long) REFERENCE * length);
+        }
+        if (object instanceof Collection<?>) {
+            Collection<?> collection = (Collection<?>) object;
+            for (Object element : collection) {
+                if (element != null) pending.push(element);
+            }
+            // The collection, its table and a node for every element
+            return 48 + 24L * collection.size();
+        }
+        if (object instanceof Map<?, ?>) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (entry.getKey() != null) pending.push(entry.getKey());
+                if (entry.getValue() != null) pending.push(entry.getValue());
+            }
+            return 64 + 40L * map.size();
+        }
+        // Shared, not held by the object
+        if (type.isEnum() || object instanceof Class<?>) return 0;
+
+        Layout layout = layouts.get(type);
+        for (Field field : layout.references) {
+            try {
+                Object value = field.get(object);
+                if (value != null) pending.push(value);
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        return layout.size;
+    }
+
+    private static final int OBJECT_HEADER = 12;
+
+    private static final int ARRAY_HEADER = 16;
+
+    private static final int REFERENCE = 4;
+
+    private static final ClassValue<Layout> layouts = new ClassValue<Layout>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            return new Layout(type);
+        }
+    };
+
+    /**
+     * The own size of instances of a class, and the fields
+     * pointing to other objects, including inherited ones.
+     */
+    private static class Layout {
+
+        private final long size;
+
+        private final List<Field> references = new ArrayList<>();
+
+        private Layout(Class<?> type) {
+            long size = OBJECT_HEADER;
+            // Classes of the jdk keep their internals private
+            boolean opaque = type.getClassLoader() == null;
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) continue;
+                    size += fieldSize(field.getType());
+                    if (opaque || field.getType().isPrimitive()) continue;
+                    try {
+                        field.setAccessible(true);
+                        references.add(field);
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+            }
+            this.size = align(size);
+        }
+
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        if (type == byte.class || type == boolean.class) return 1;
+        return REFERENCE;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static boolean isManaged(Class<?> type) {
+        XillaApplication application = XillaApplication.getInstance();
+        return application != null && application.getClassManagerMap().containsKey(type);
+    }
+
     /**
      *
      * @param field
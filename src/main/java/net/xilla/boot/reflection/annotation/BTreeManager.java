@@ -0,0 +1,13 @@
+package net.xilla.boot.reflection.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.RUNTIME)
+public @interface BTreeManager {
+
+    String fileName();
+
+    int cachePages() default 4096;
+
+}
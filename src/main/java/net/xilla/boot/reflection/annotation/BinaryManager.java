@@ -0,0 +1,11 @@
+package net.xilla.boot.reflection.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.RUNTIME)
+public @interface BinaryManager {
+
+    String fileName();
+
+}
@@ -0,0 +1,12 @@
+package net.xilla.boot.reflection.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/***
+ * Keeps an index from the values of the field to the keys
+ * of the objects holding them, see Manager.findBy().
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexed {
+}
@@ -1,5 +1,7 @@
 package net.xilla.boot.reflection.annotation;
 
+import net.xilla.boot.storage.file.loader.FolderLayout;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -8,4 +10,14 @@ public @interface JsonFolderManager {
 
     String folderName();
 
+    boolean lazy() default false;
+
+    int readingThreads() default 1;
+
+    FolderLayout layout() default FolderLayout.FLAT;
+
+    boolean pack() default false;
+
+    boolean compressed() default false;
+
 }
\ No newline at end of file
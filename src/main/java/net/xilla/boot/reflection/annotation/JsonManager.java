@@ -11,4 +11,10 @@ public @interface JsonManager {
 
     String fileName();
 
+    boolean mapped() default false;
+
+    boolean compressed() default false;
+
+    int shards() default 1;
+
 }
@@ -1,6 +1,9 @@
 package net.xilla.boot.storage.file;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 public interface FileLoader extends Map<String, FileSection> {
@@ -17,6 +20,49 @@ public interface FileLoader extends Map<String, FileSection> {
 
     void unloadData(String sectionKey);
 
+    /***
+     * Loads the data of many sections at once, loaders can
+     * order or spread the reads. The given sections are left
+     * as they are, sections that fail to load are left out.
+     *
+     * @return The loaded sections by key
+     */
+    default Map<String, FileSection> loadAllData(Collection<FileSection> sections) throws IOException {
+        Map<String, FileSection> loaded = new HashMap<>();
+        for(FileSection section : sections) {
+            FileSection data = loadData(section);
+            if(data != null) loaded.put(section.getKey(), data);
+        }
+        return loaded;
+    }
+
+    /***
+     * Drops the in memory index before the file is read again.
+     * Loaders whose index lives on disk keep it.
+     */
+    default void clearIndex() {
+        clear();
+    }
+
+    /***
+     * Whether the loader keeps its keys sorted, so keyIterator()
+     * can walk them in order without an index on the heap.
+     */
+    default boolean isOrdered() {
+        return false;
+    }
+
+    /***
+     * Iterates the stored keys in order, starting at the first
+     * key that isn't smaller than from. Only ordered loaders
+     * support it.
+     *
+     * @param from First key to include, or null to start at the beginning
+     */
+    default Iterator<String> keyIterator(String from) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't keep its keys in order");
+    }
+
     class FileException extends Exception {
 
         private Exception exception;
@@ -25,11 +25,27 @@ public class FileSection {
 
     @Setter
     @Getter
-    private int start = -1;
+    private long start = -1;
 
     @Setter
     @Getter
-    private int end = -1;
+    private long end = -1;
+
+    /***
+     * Which file the section lives in, for loaders
+     * that spread their data over more than one file.
+     */
+    @Setter
+    @Getter
+    private int segment = -1;
+
+    /***
+     * Offset of the compressed block holding the section,
+     * start and end are then positions inside the block.
+     */
+    @Setter
+    @Getter
+    private long block = -1;
 
     @Setter
     private FileLoader fileLoader = null;
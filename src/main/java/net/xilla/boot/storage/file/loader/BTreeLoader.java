@@ -0,0 +1,932 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.Getter;
+import lombok.Setter;
+import net.xilla.boot.Logger;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/***
+ * A loader backed by a single paged file holding a B+tree on
+ * the manager keys. Only the pages in use are kept in memory,
+ * in a page cache of cachePages pages, so the index never has
+ * to fit on the heap.
+ *
+ * Puts and removes update the cached pages in place, the
+ * changed pages are written when the sections are saved. They
+ * go to a double write file first, so a crash in the middle of
+ * a save can't leave a torn tree behind.
+ *
+ * Values that don't fit in a leaf are kept in a chain of
+ * overflow pages. Leaves aren't merged when entries are
+ * removed, their space is reused by later puts.
+ */
+public class BTreeLoader extends AbstractMap<String, FileSection> implements FileLoader {
+
+    private static final int MAGIC = 0x58425452;
+
+    private static final int VERSION = 1;
+
+    public static final int PAGE_SIZE = 8192;
+
+    public static final int MAX_KEY_SIZE = 1024;
+
+    private static final int MAX_INLINE_SIZE = 1024;
+
+    private static final int OVERFLOW_DATA_SIZE = PAGE_SIZE - 4;
+
+    // Type, next leaf or first child, and entry count
+    private static final int NODE_HEADER_SIZE = 7;
+
+    private static final byte LEAF = 1;
+
+    private static final byte INTERNAL = 2;
+
+    private static final Gson gson = new Gson();
+
+    private final File file;
+
+    private final File doubleWriteFile;
+
+    /***
+     * Clean pages kept in memory. Changed pages stay
+     * cached until they are saved.
+     */
+    @Getter
+    @Setter
+    private int cachePages;
+
+    private FileChannel channel = null;
+
+    private int root;
+
+    private int pageCount;
+
+    private int freeHead;
+
+    private long count;
+
+    private boolean headerDirty = false;
+
+    private final LinkedHashMap<Integer, Node> cache = new LinkedHashMap<Integer, Node>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Node> eldest) {
+            if(size() > cachePages) evictClean();
+            return false;
+        }
+    };
+
+    // Nodes changed by a running put or remove, see readPinned
+    private final Set<Integer> pinned = new HashSet<>();
+
+    // Overflow and free pages waiting to be written
+    private final Map<Integer, byte[]> dirtyPages = new HashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public BTreeLoader(String filePath) {
+        this(filePath, 4096);
+    }
+
+    public BTreeLoader(String filePath, int cachePages) {
+        this.file = new File(filePath);
+        this.doubleWriteFile = new File(filePath + ".dwb");
+        this.cachePages = cachePages;
+    }
+
+    /***
+     * @return Pages held in memory right now, which only passes
+     * cachePages while changed pages wait for a save
+     */
+    public int getCachedPages() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    // FileLoader
+
+    public void put(FileSection section) {
+        put(section.getKey(), section);
+    }
+
+    @Override
+    public FileSection put(String key, FileSection section) {
+        JsonObject data = section.getData();
+        if(data == null) return null;
+
+        byte[] value = gson.toJson(data).getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            insert(key, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to store " + key + " in " + file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return null;
+    }
+
+    @Override
+    public void remove(String key) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            delete(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to remove " + key + " from " + file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public FileSection remove(Object key) {
+        remove(key.toString());
+        return null;
+    }
+
+    /***
+     * The tree is the index, there is nothing to drop
+     * before it is read again.
+     */
+    @Override
+    public void clearIndex() {
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            cache.clear();
+            dirtyPages.clear();
+            channel.truncate(0);
+            initialize();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to clear " + file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void unloadData(String sectionKey) {
+        // Sections aren't cached, only pages
+    }
+
+    public void saveSections() throws FileException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            flush();
+        } catch (IOException e) {
+            throw new FileException("Failed to write the changed pages!", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Changes made before readFile() was called open the file first
+    private void ensureOpen() throws IOException {
+        if(channel == null) readFile();
+    }
+
+    public void readFile() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if(channel != null) channel.close();
+            cache.clear();
+            dirtyPages.clear();
+
+            if(file.getParentFile() != null) file.getParentFile().mkdirs();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            recoverDoubleWrite();
+
+            if(channel.size() == 0) {
+                initialize();
+                return;
+            }
+
+            ByteBuffer header = ByteBuffer.wrap(readPage(0));
+            if(header.getInt() != MAGIC) throw new IOException(file + " is not a B+tree file");
+            int version = header.getInt();
+            if(version != VERSION) throw new IOException(file + " has unsupported version " + version);
+            if(header.getInt() != PAGE_SIZE) throw new IOException(file + " uses a different page size");
+            root = header.getInt();
+            pageCount = header.getInt();
+            freeHead = header.getInt();
+            count = header.getLong();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public FileSection loadData(FileSection section) throws IOException {
+        lock.readLock().lock();
+        try {
+            Slot slot = locate(section.getKey());
+            return new FileSection(section.getKey(), slot == null ? null : decode(readValue(slot)), this);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Map
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        lock.readLock().lock();
+        try {
+            return locate(key.toString()) != null;
+        } catch (IOException e) {
+            Logger.error("Failed to look up " + key + " in " + file);
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public FileSection get(Object key) {
+        lock.readLock().lock();
+        try {
+            Slot slot = locate(key.toString());
+            if(slot == null) return null;
+            return new FileSection(key.toString(), decode(readValue(slot)), this);
+        } catch (IOException e) {
+            Logger.error("Failed to read " + key + " from " + file);
+            e.printStackTrace();
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /***
+     * Entries in key order. Their data is read when
+     * it is first used.
+     */
+    @Override
+    public Set<Entry<String, FileSection>> entrySet() {
+        return new AbstractSet<Entry<String, FileSection>>() {
+            @Override
+            public Iterator<Entry<String, FileSection>> iterator() {
+                Iterator<String> keys = keyIterator(null);
+                return new Iterator<Entry<String, FileSection>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, FileSection> next() {
+                        String key = keys.next();
+                        return new SimpleImmutableEntry<>(key, new FileSection(key, null, BTreeLoader.this));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return BTreeLoader.this.size();
+            }
+        };
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    /***
+     * Iterates the keys in order, starting at the first key
+     * that isn't smaller than from. Changes made while
+     * iterating may or may not be seen.
+     *
+     * @param from First key to include, or null to start at the beginning
+     */
+    @Override
+    public Iterator<String> keyIterator(String from) {
+        return new Iterator<String>() {
+            private List<String> keys;
+            private int index;
+            private int next;
+
+            {
+                lock.readLock().lock();
+                try {
+                    Node node = readNode(root);
+                    while(!node.leaf) {
+                        node = readNode(node.children.get(from == null ? 0 : childIndex(node, from)));
+                    }
+                    keys = new ArrayList<>(node.keys);
+                    index = from == null ? 0 : insertionPoint(node.keys, from);
+                    next = node.next;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                while(index >= keys.size() && next != 0) {
+                    lock.readLock().lock();
+                    try {
+                        Node node = readNode(next);
+                        keys = new ArrayList<>(node.keys);
+                        next = node.next;
+                        index = 0;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+                return index < keys.size();
+            }
+
+            @Override
+            public String next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                return keys.get(index++);
+            }
+        };
+    }
+
+    // Tree
+
+    private Slot locate(String key) throws IOException {
+        Node node = readNode(root);
+        while(!node.leaf) {
+            node = readNode(node.children.get(childIndex(node, key)));
+        }
+        int index = Collections.binarySearch(node.keys, key);
+        return index >= 0 ? node.slots.get(index) : null;
+    }
+
+    private void insert(String key, byte[] value) throws IOException {
+        if(key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key " + key + " is longer than " + MAX_KEY_SIZE + " bytes");
+        }
+
+        try {
+            insertPinned(key, value);
+        } finally {
+            unpin();
+        }
+    }
+
+    private void insertPinned(String key, byte[] value) throws IOException {
+        List<Node> path = new ArrayList<>();
+        Node node = readPinned(root);
+        while(!node.leaf) {
+            path.add(node);
+            node = readPinned(node.children.get(childIndex(node, key)));
+        }
+
+        Slot slot = writeValue(value);
+        int index = Collections.binarySearch(node.keys, key);
+        if(index >= 0) {
+            Slot previous = node.slots.set(index, slot);
+            node.size += slot.size() - previous.size();
+            freeValue(previous);
+        } else {
+            index = -index - 1;
+            node.keys.add(index, key);
+            node.slots.add(index, slot);
+            node.size += keySize(key) + slot.size();
+            count++;
+            headerDirty = true;
+        }
+        node.dirty = true;
+
+        while(node.size > PAGE_SIZE) {
+            Node right = allocateNode(node.leaf);
+            String separator = split(node, right);
+
+            if(path.isEmpty()) {
+                Node newRoot = allocateNode(false);
+                newRoot.children.add(node.id);
+                newRoot.keys.add(separator);
+                newRoot.children.add(right.id);
+                newRoot.size += keySize(separator) + 4;
+                root = newRoot.id;
+                break;
+            }
+
+            Node parent = path.remove(path.size() - 1);
+            int position = parent.children.indexOf(node.id);
+            parent.keys.add(position, separator);
+            parent.children.add(position + 1, right.id);
+            parent.size += keySize(separator) + 4;
+            parent.dirty = true;
+            node = parent;
+        }
+    }
+
+    private void delete(String key) throws IOException {
+        try {
+            deletePinned(key);
+        } finally {
+            unpin();
+        }
+    }
+
+    private void deletePinned(String key) throws IOException {
+        Node node = readPinned(root);
+        while(!node.leaf) {
+            node = readPinned(node.children.get(childIndex(node, key)));
+        }
+
+        int index = Collections.binarySearch(node.keys, key);
+        if(index < 0) return;
+
+        node.keys.remove(index);
+        Slot slot = node.slots.remove(index);
+        node.size -= keySize(key) + slot.size();
+        node.dirty = true;
+        freeValue(slot);
+        count--;
+        headerDirty = true;
+    }
+
+    /***
+     * Moves the upper half of the node, by size, to the
+     * new right node.
+     *
+     * @return The key separating the two nodes in their parent
+     */
+    private String split(Node node, Node right) {
+        int half = node.size / 2;
+        int size = NODE_HEADER_SIZE;
+        int middle = 1;
+        for(int i = 0; i < node.keys.size() - 1; i++) {
+            size += keySize(node.keys.get(i)) + (node.leaf ? node.slots.get(i).size() : 4);
+            if(size >= half) {
+                middle = Math.max(1, i);
+                break;
+            }
+        }
+
+        String separator;
+        if(node.leaf) {
+            right.keys.addAll(node.keys.subList(middle, node.keys.size()));
+            right.slots.addAll(node.slots.subList(middle, node.slots.size()));
+            node.keys.subList(middle, node.keys.size()).clear();
+            node.slots.subList(middle, node.slots.size()).clear();
+            right.next = node.next;
+            node.next = right.id;
+            separator = right.keys.get(0);
+        } else {
+            // The middle key moves up into the parent
+            separator = node.keys.get(middle);
+            right.keys.addAll(node.keys.subList(middle + 1, node.keys.size()));
+            right.children.addAll(node.children.subList(middle + 1, node.children.size()));
+            node.keys.subList(middle, node.keys.size()).clear();
+            node.children.subList(middle + 1, node.children.size()).clear();
+        }
+
+        node.size = measure(node);
+        right.size = measure(right);
+        node.dirty = true;
+        right.dirty = true;
+        return separator;
+    }
+
+    private static int childIndex(Node node, String key) {
+        int index = Collections.binarySearch(node.keys, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private static int insertionPoint(List<String> keys, String key) {
+        int index = Collections.binarySearch(keys, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    // Values
+
+    private Slot writeValue(byte[] value) throws IOException {
+        if(value.length <= MAX_INLINE_SIZE) {
+            return new Slot(value.length, value, 0);
+        }
+
+        int pages = (value.length + OVERFLOW_DATA_SIZE - 1) / OVERFLOW_DATA_SIZE;
+        int[] ids = new int[pages];
+        for(int i = 0; i < pages; i++) {
+            ids[i] = allocatePage();
+        }
+        for(int i = 0; i < pages; i++) {
+            ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+            page.putInt(i + 1 < pages ? ids[i + 1] : 0);
+            int offset = i * OVERFLOW_DATA_SIZE;
+            page.put(value, offset, Math.min(OVERFLOW_DATA_SIZE, value.length - offset));
+            dirtyPages.put(ids[i], page.array());
+        }
+        return new Slot(value.length, null, ids[0]);
+    }
+
+    private byte[] readValue(Slot slot) throws IOException {
+        if(slot.inline != null) return slot.inline;
+
+        byte[] value = new byte[slot.length];
+        int offset = 0;
+        int page = slot.overflow;
+        while(offset < value.length) {
+            ByteBuffer buffer = ByteBuffer.wrap(readPage(page));
+            page = buffer.getInt();
+            int length = Math.min(OVERFLOW_DATA_SIZE, value.length - offset);
+            buffer.get(value, offset, length);
+            offset += length;
+        }
+        return value;
+    }
+
+    private void freeValue(Slot slot) throws IOException {
+        if(slot.inline != null) return;
+
+        int page = slot.overflow;
+        int remaining = (slot.length + OVERFLOW_DATA_SIZE - 1) / OVERFLOW_DATA_SIZE;
+        while(remaining-- > 0 && page != 0) {
+            int next = ByteBuffer.wrap(readPage(page)).getInt();
+            freePage(page);
+            page = next;
+        }
+    }
+
+    private JsonObject decode(byte[] value) {
+        try {
+            return JsonParser.parseString(new String(value, StandardCharsets.UTF_8)).getAsJsonObject();
+        } catch (Exception ex) {
+            Logger.error("Failed to parse a value in " + file);
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    // Pages
+
+    private int allocatePage() throws IOException {
+        headerDirty = true;
+        if(freeHead == 0) {
+            return pageCount++;
+        }
+        int id = freeHead;
+        freeHead = ByteBuffer.wrap(readPage(id)).getInt();
+        return id;
+    }
+
+    private void freePage(int id) {
+        byte[] page = new byte[PAGE_SIZE];
+        ByteBuffer.wrap(page).putInt(freeHead);
+        dirtyPages.put(id, page);
+        freeHead = id;
+        headerDirty = true;
+    }
+
+    private Node allocateNode(boolean leaf) throws IOException {
+        Node node = new Node(allocatePage(), leaf);
+        dirtyPages.remove(node.id);
+        node.dirty = true;
+        synchronized (cache) {
+            cache.put(node.id, node);
+        }
+        return node;
+    }
+
+    /***
+     * Evicts the least recently used nodes that are clean and
+     * not pinned, until the cache is back to cachePages. Dirty
+     * nodes are skipped rather than stopping the eviction, they
+     * only leave the cache once they are saved. Callers hold
+     * the cache lock.
+     */
+    private void evictClean() {
+        Iterator<Map.Entry<Integer, Node>> iterator = cache.entrySet().iterator();
+        while(cache.size() > cachePages && iterator.hasNext()) {
+            Map.Entry<Integer, Node> entry = iterator.next();
+            if(!entry.getValue().dirty && !pinned.contains(entry.getKey())) iterator.remove();
+        }
+    }
+
+    /***
+     * Reads a node that has to stay cached until the running
+     * change is done, even while it is clean. A node evicted in
+     * between would take the change with it.
+     */
+    private Node readPinned(int id) throws IOException {
+        synchronized (cache) {
+            pinned.add(id);
+        }
+        return readNode(id);
+    }
+
+    private void unpin() {
+        synchronized (cache) {
+            pinned.clear();
+        }
+    }
+
+    private Node readNode(int id) throws IOException {
+        synchronized (cache) {
+            Node node = cache.get(id);
+            if(node != null) return node;
+        }
+
+        Node node = decodeNode(id, readPage(id));
+        synchronized (cache) {
+            Node cached = cache.putIfAbsent(id, node);
+            return cached != null ? cached : node;
+        }
+    }
+
+    private byte[] readPage(int id) throws IOException {
+        byte[] dirty = dirtyPages.get(id);
+        if(dirty != null) return dirty;
+
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        long position = (long) id * PAGE_SIZE;
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0) throw new EOFException("Page " + id + " is past the end of " + file);
+        }
+        return buffer.array();
+    }
+
+    private void initialize() throws IOException {
+        root = 1;
+        pageCount = 2;
+        freeHead = 0;
+        count = 0;
+
+        Node leaf = new Node(root, true);
+        leaf.dirty = true;
+        synchronized (cache) {
+            cache.put(root, leaf);
+        }
+        headerDirty = true;
+        flush();
+    }
+
+    /***
+     * Writes every changed page, through the double write
+     * file so the tree on disk is always a saved state.
+     */
+    private void flush() throws IOException {
+        Map<Integer, byte[]> pages = new TreeMap<>(dirtyPages);
+        List<Node> nodes = new ArrayList<>();
+        synchronized (cache) {
+            for(Node node : cache.values()) {
+                if(node.dirty) {
+                    pages.put(node.id, encodeNode(node));
+                    nodes.add(node);
+                }
+            }
+        }
+        if(pages.isEmpty() && !headerDirty) return;
+        pages.put(0, encodeHeader());
+
+        CRC32 checksum = new CRC32();
+        try(FileOutputStream fileStream = new FileOutputStream(doubleWriteFile);
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream, JsonSectionScanner.BUFFER_SIZE))) {
+            stream.writeInt(pages.size());
+            for(Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+                stream.writeInt(page.getKey());
+                stream.write(page.getValue());
+                checksum.update(page.getValue());
+            }
+            stream.writeLong(checksum.getValue());
+            stream.flush();
+            fileStream.getChannel().force(false);
+        }
+
+        writePages(pages);
+        doubleWriteFile.delete();
+
+        dirtyPages.clear();
+        headerDirty = false;
+        synchronized (cache) {
+            for(Node node : nodes) {
+                node.dirty = false;
+            }
+            // Pages that were pinned while dirty can go now
+            evictClean();
+        }
+    }
+
+    private void writePages(Map<Integer, byte[]> pages) throws IOException {
+        for(Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+            ByteBuffer buffer = ByteBuffer.wrap(page.getValue());
+            long position = (long) page.getKey() * PAGE_SIZE;
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        channel.force(false);
+    }
+
+    /***
+     * Finishes a save that was cut off while writing pages in
+     * place. A double write file that is incomplete means the
+     * data file wasn't touched yet, so it's simply dropped.
+     */
+    private void recoverDoubleWrite() throws IOException {
+        if(!doubleWriteFile.exists()) return;
+
+        Map<Integer, byte[]> pages = new TreeMap<>();
+        CRC32 checksum = new CRC32();
+        boolean complete = false;
+        try(DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(doubleWriteFile), JsonSectionScanner.BUFFER_SIZE))) {
+            int size = stream.readInt();
+            for(int i = 0; i < size; i++) {
+                int id = stream.readInt();
+                byte[] page = new byte[PAGE_SIZE];
+                stream.readFully(page);
+                checksum.update(page);
+                pages.put(id, page);
+            }
+            complete = stream.readLong() == checksum.getValue();
+        } catch (EOFException ex) {
+            complete = false;
+        }
+
+        if(complete) {
+            Logger.warn("Finishing an interrupted save of " + file);
+            writePages(pages);
+        }
+        doubleWriteFile.delete();
+    }
+
+    private byte[] encodeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(PAGE_SIZE);
+        header.putInt(root);
+        header.putInt(pageCount);
+        header.putInt(freeHead);
+        header.putLong(count);
+        return header.array();
+    }
+
+    private static byte[] encodeNode(Node node) {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        buffer.put(node.leaf ? LEAF : INTERNAL);
+        if(node.leaf) {
+            buffer.putInt(node.next);
+            buffer.putShort((short) node.keys.size());
+            for(int i = 0; i < node.keys.size(); i++) {
+                putKey(buffer, node.keys.get(i));
+                Slot slot = node.slots.get(i);
+                buffer.put((byte) (slot.inline != null ? 0 : 1));
+                buffer.putInt(slot.length);
+                if(slot.inline != null) {
+                    buffer.put(slot.inline);
+                } else {
+                    buffer.putInt(slot.overflow);
+                }
+            }
+        } else {
+            buffer.putShort((short) node.keys.size());
+            buffer.putInt(node.children.get(0));
+            for(int i = 0; i < node.keys.size(); i++) {
+                putKey(buffer, node.keys.get(i));
+                buffer.putInt(node.children.get(i + 1));
+            }
+        }
+        return buffer.array();
+    }
+
+    private static Node decodeNode(int id, byte[] page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(page);
+        byte type = buffer.get();
+        if(type != LEAF && type != INTERNAL) throw new IOException("Page " + id + " is not a tree node");
+
+        Node node = new Node(id, type == LEAF);
+        if(node.leaf) {
+            node.next = buffer.getInt();
+            int size = buffer.getShort();
+            for(int i = 0; i < size; i++) {
+                node.keys.add(getKey(buffer));
+                boolean inline = buffer.get() == 0;
+                int length = buffer.getInt();
+                if(inline) {
+                    byte[] value = new byte[length];
+                    buffer.get(value);
+                    node.slots.add(new Slot(length, value, 0));
+                } else {
+                    node.slots.add(new Slot(length, null, buffer.getInt()));
+                }
+            }
+        } else {
+            int size = buffer.getShort();
+            node.children.add(buffer.getInt());
+            for(int i = 0; i < size; i++) {
+                node.keys.add(getKey(buffer));
+                node.children.add(buffer.getInt());
+            }
+        }
+        node.size = measure(node);
+        return node;
+    }
+
+    private static void putKey(ByteBuffer buffer, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getKey(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int keySize(String key) {
+        return 2 + key.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int measure(Node node) {
+        int size = NODE_HEADER_SIZE;
+        for(int i = 0; i < node.keys.size(); i++) {
+            size += keySize(node.keys.get(i)) + (node.leaf ? node.slots.get(i).size() : 4);
+        }
+        return size;
+    }
+
+    private static class Node {
+
+        private final int id;
+
+        private final boolean leaf;
+
+        private int next = 0;
+
+        private final List<String> keys = new ArrayList<>();
+
+        private final List<Slot> slots = new ArrayList<>();
+
+        private final List<Integer> children = new ArrayList<>();
+
+        private int size = NODE_HEADER_SIZE;
+
+        private boolean dirty = false;
+
+        private Node(int id, boolean leaf) {
+            this.id = id;
+            this.leaf = leaf;
+        }
+
+    }
+
+    /***
+     * A value in a leaf, stored inline or as the first
+     * page of an overflow chain.
+     */
+    private static class Slot {
+
+        private final int length;
+
+        private final byte[] inline;
+
+        private final int overflow;
+
+        private Slot(int length, byte[] inline, int overflow) {
+            this.length = length;
+            this.inline = inline;
+            this.overflow = overflow;
+        }
+
+        private int size() {
+            return 1 + 4 + (inline != null ? inline.length : 4);
+        }
+
+    }
+
+}
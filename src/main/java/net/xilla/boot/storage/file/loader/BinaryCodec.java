@@ -0,0 +1,245 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.*;
+import net.xilla.boot.api.Pair;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Encodes the json produced by the ObjectProcessor into a
+ * compact binary record. Every value starts with a type tag,
+ * numbers and lengths are varints, and object field names
+ * are replaced by their id in the dictionary.
+ *
+ * The dictionary only ever grows, so records encoded against
+ * an older copy of it can still be decoded by a newer one.
+ */
+public class BinaryCodec {
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int INT = 3;
+    private static final int DOUBLE = 4;
+    private static final int FLOAT = 5;
+    private static final int NUMBER = 6;
+    private static final int STRING = 7;
+    private static final int ARRAY = 8;
+    private static final int OBJECT = 9;
+
+    private final List<String> names = new ArrayList<>();
+
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    public synchronized int size() {
+        return names.size();
+    }
+
+    // Records
+
+    public byte[] encode(String key, JsonObject data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            DataOutputStream stream = new DataOutputStream(bytes);
+            writeString(stream, key);
+            writeValue(stream, data);
+        } catch (IOException e) {
+            // Only writes to memory
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public Pair<String, JsonObject> decode(byte[] record) throws IOException {
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(record));
+        String key = readString(stream);
+        JsonElement data = readValue(stream);
+        return new Pair<>(key, data.isJsonObject() ? data.getAsJsonObject() : null);
+    }
+
+    public static String decodeKey(DataInput stream) throws IOException {
+        return readString(stream);
+    }
+
+    // Dictionary
+
+    public synchronized void writeDictionary(DataOutput stream) throws IOException {
+        writeVarInt(stream, names.size());
+        for(String name : names) {
+            writeString(stream, name);
+        }
+    }
+
+    public synchronized void readDictionary(DataInput stream) throws IOException {
+        names.clear();
+        ids.clear();
+        int count = readVarInt(stream);
+        for(int i = 0; i < count; i++) {
+            String name = readString(stream);
+            ids.put(name, names.size());
+            names.add(name);
+        }
+    }
+
+    private synchronized int id(String name) {
+        Integer id = ids.get(name);
+        if(id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    private synchronized String name(int id) throws IOException {
+        if(id < 0 || id >= names.size()) throw new IOException("Unknown field id " + id);
+        return names.get(id);
+    }
+
+    // Values
+
+    private void writeValue(DataOutput stream, JsonElement element) throws IOException {
+        if(element == null || element.isJsonNull()) {
+            stream.writeByte(NULL);
+        } else if(element.isJsonObject()) {
+            stream.writeByte(OBJECT);
+            JsonObject object = element.getAsJsonObject();
+            writeVarInt(stream, object.size());
+            for(Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeVarInt(stream, id(entry.getKey()));
+                writeValue(stream, entry.getValue());
+            }
+        } else if(element.isJsonArray()) {
+            stream.writeByte(ARRAY);
+            JsonArray array = element.getAsJsonArray();
+            writeVarInt(stream, array.size());
+            for(JsonElement value : array) {
+                writeValue(stream, value);
+            }
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if(primitive.isBoolean()) {
+                stream.writeByte(primitive.getAsBoolean() ? TRUE : FALSE);
+            } else if(primitive.isString()) {
+                stream.writeByte(STRING);
+                writeString(stream, primitive.getAsString());
+            } else {
+                Number number = primitive.getAsNumber();
+                if(number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+                    stream.writeByte(INT);
+                    writeVarLong(stream, number.longValue());
+                } else if(number instanceof Double) {
+                    stream.writeByte(DOUBLE);
+                    stream.writeDouble(number.doubleValue());
+                } else if(number instanceof Float) {
+                    stream.writeByte(FLOAT);
+                    stream.writeFloat(number.floatValue());
+                } else {
+                    // Parsed or arbitrary precision numbers keep their text
+                    stream.writeByte(NUMBER);
+                    writeString(stream, number.toString());
+                }
+            }
+        }
+    }
+
+    private JsonElement readValue(DataInput stream) throws IOException {
+        int tag = stream.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return JsonNull.INSTANCE;
+            case TRUE:
+                return new JsonPrimitive(true);
+            case FALSE:
+                return new JsonPrimitive(false);
+            case INT:
+                return new JsonPrimitive(readVarLong(stream));
+            case DOUBLE:
+                return new JsonPrimitive(stream.readDouble());
+            case FLOAT:
+                return new JsonPrimitive(stream.readFloat());
+            case NUMBER:
+                return new JsonPrimitive(new BigDecimal(readString(stream)));
+            case STRING:
+                return new JsonPrimitive(readString(stream));
+            case ARRAY: {
+                int size = readVarInt(stream);
+                JsonArray array = new JsonArray(size);
+                for(int i = 0; i < size; i++) {
+                    array.add(readValue(stream));
+                }
+                return array;
+            }
+            case OBJECT: {
+                int size = readVarInt(stream);
+                JsonObject object = new JsonObject();
+                for(int i = 0; i < size; i++) {
+                    String name = name(readVarInt(stream));
+                    object.add(name, readValue(stream));
+                }
+                return object;
+            }
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    // Primitives
+
+    private static void writeString(DataOutput stream, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(stream, bytes.length);
+        stream.write(bytes);
+    }
+
+    private static String readString(DataInput stream) throws IOException {
+        byte[] bytes = new byte[readVarInt(stream)];
+        stream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(DataOutput stream, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            stream.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        stream.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput stream) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            int b = stream.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // Zig-zag encoded so small negative numbers stay small
+    private static void writeVarLong(DataOutput stream, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while((zigzag & ~0x7FL) != 0) {
+            stream.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        stream.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(DataInput stream) throws IOException {
+        long zigzag = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = stream.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
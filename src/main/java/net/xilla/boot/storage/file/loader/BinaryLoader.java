@@ -0,0 +1,246 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.JsonObject;
+import net.xilla.boot.Logger;
+import net.xilla.boot.api.Pair;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/***
+ * Stores every section in a single binary file, as length
+ * prefixed records encoded by the BinaryCodec. The field
+ * name dictionary is written at the end of the file.
+ *
+ * Uses the same json the other loaders store, so a manager
+ * can be moved over without changing its value class.
+ */
+public class BinaryLoader extends ConcurrentHashMap<String, FileSection> implements FileLoader {
+
+    private static final int MAGIC = 0x58425246;
+
+    private static final int VERSION = 1;
+
+    // Header is the magic and version
+    private static final int HEADER_SIZE = 8;
+
+    // Trailer is the dictionary offset and the magic again
+    private static final int TRAILER_SIZE = 12;
+
+    private final File file;
+
+    private final File tempFile;
+
+    private final BinaryCodec codec = new BinaryCodec();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public BinaryLoader(String filePath) {
+        this.file = new File(filePath);
+        this.tempFile = new File(filePath + ".temp");
+    }
+
+    @Override
+    public void unloadData(String section) {
+        get(section).clearData();
+    }
+
+    public void put(FileSection object) {
+        super.put(object.getKey(), object);
+    }
+
+    @Override
+    public void remove(String key) {
+        super.remove(key);
+    }
+
+    // Writing to the file
+
+    public void saveSections() throws FileException {
+        tempFile.delete();
+
+        // Unchanged records are copied as they are, in file order
+        List<FileSection> sections = new ArrayList<>(values());
+        sections.sort(Comparator.comparingLong(section -> section.getStart() < 0 ? Long.MAX_VALUE : section.getStart()));
+
+        List<Pair<FileSection, long[]>> offsets = new ArrayList<>();
+        try(DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), JsonSectionScanner.BUFFER_SIZE));
+            RandomAccessFile source = file.exists() ? new RandomAccessFile(file, "r") : null) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+
+            long position = HEADER_SIZE;
+            for(FileSection section : sections) {
+                byte[] record;
+                if(section.getRawData() == null && section.getStart() >= 0 && source != null) {
+                    record = readRecord(source, section.getStart(), section.getEnd());
+                } else {
+                    record = codec.encode(section.getKey(), section.getData());
+                }
+
+                stream.writeInt(record.length);
+                stream.write(record);
+                offsets.add(new Pair<>(section, new long[] {position + 4, position + 4 + record.length}));
+                position += 4 + record.length;
+            }
+
+            codec.writeDictionary(stream);
+            stream.writeLong(position);
+            stream.writeInt(MAGIC);
+        } catch (IOException e) {
+            throw new FileException("Failed to write the temporary file!", e);
+        }
+
+        lock.writeLock().lock();
+        try {
+            try {
+                if(!Files.deleteIfExists(file.toPath()) && file.exists()) {
+                    throw new FileException("Failed to delete the original file!");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new FileException("Failed to delete the original file.");
+            }
+            if (!tempFile.renameTo(file))
+                throw new FileException("Failed to rename temporary file!");
+
+            for(Pair<FileSection, long[]> offset : offsets) {
+                offset.getKey().setStart(offset.getValue()[0]);
+                offset.getKey().setEnd(offset.getValue()[1]);
+                offset.getKey().clearData();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Reading from the file
+
+    public void readFile() throws IOException {
+        if(!file.exists()) {
+            if(file.getParentFile() != null) file.getParentFile().mkdirs();
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            long dictionary;
+            try(RandomAccessFile access = new RandomAccessFile(file, "r")) {
+                if(access.length() < HEADER_SIZE + TRAILER_SIZE || access.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a binary storage file");
+                }
+                int version = access.readInt();
+                if(version != VERSION) {
+                    throw new IOException(file + " has unsupported version " + version);
+                }
+
+                access.seek(access.length() - TRAILER_SIZE);
+                dictionary = access.readLong();
+                if(access.readInt() != MAGIC || dictionary < HEADER_SIZE || dictionary > access.length() - TRAILER_SIZE) {
+                    throw new IOException(file + " has a damaged trailer");
+                }
+
+                byte[] names = new byte[(int)(access.length() - TRAILER_SIZE - dictionary)];
+                access.seek(dictionary);
+                access.readFully(names);
+                codec.readDictionary(new DataInputStream(new ByteArrayInputStream(names)));
+            }
+
+            // Only the length and key of each record are needed for the index
+            try(DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), JsonSectionScanner.BUFFER_SIZE))) {
+                stream.readFully(new byte[HEADER_SIZE]);
+                long position = HEADER_SIZE;
+                while(position < dictionary) {
+                    int length = stream.readInt();
+                    long start = position + 4;
+
+                    CountingInput counting = new CountingInput(stream);
+                    String key = BinaryCodec.decodeKey(new DataInputStream(counting));
+                    skipFully(stream, length - counting.count);
+
+                    FileSection section = new FileSection(key, null, this);
+                    section.setStart(start);
+                    section.setEnd(start + length);
+                    put(section);
+
+                    position = start + length;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public FileSection loadData(FileSection section) throws IOException {
+        byte[] record;
+        lock.readLock().lock();
+        try(RandomAccessFile access = new RandomAccessFile(file, "r")) {
+            record = readRecord(access, section.getStart(), section.getEnd());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            Pair<String, JsonObject> decoded = codec.decode(record);
+            FileSection loaded = new FileSection(decoded.getKey(), decoded.getValue(), this);
+            loaded.setStart(section.getStart());
+            loaded.setEnd(section.getEnd());
+            return loaded;
+        } catch (Exception ex) {
+            Logger.error("Failed to load object with starting position " + section.getStart());
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private byte[] readRecord(RandomAccessFile source, long start, long end) throws IOException {
+        byte[] bytes = new byte[(int)(end - start)];
+        source.seek(start);
+        source.readFully(bytes);
+        return bytes;
+    }
+
+    private static void skipFully(DataInputStream stream, int count) throws IOException {
+        while(count > 0) {
+            int skipped = stream.skipBytes(count);
+            if(skipped <= 0) throw new EOFException("Record ended early");
+            count -= skipped;
+        }
+    }
+
+    /***
+     * Counts how much of a record the key took up,
+     * so the rest of it can be skipped.
+     */
+    private static class CountingInput extends FilterInputStream {
+
+        private int count = 0;
+
+        private CountingInput(InputStream stream) {
+            super(stream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if(read >= 0) count++;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if(read > 0) count += read;
+            return read;
+        }
+
+    }
+
+}
@@ -0,0 +1,189 @@
+package net.xilla.boot.storage.file.loader;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/***
+ * A block compressed layout for files of sections. Sections
+ * are grouped into blocks of about blockSize bytes, and every
+ * block is deflated on its own, so a single section can be
+ * read back by inflating only the block holding it.
+ *
+ * The file starts with a magic number, followed by the blocks,
+ * each being the compressed length, the raw length and the
+ * deflated bytes. Sections never cross a block boundary.
+ */
+public class BlockFile {
+
+    public static final int MAGIC = 0x58424C4B;
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final int HEADER_SIZE = 4;
+
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    public interface RangeReader {
+
+        byte[] read(long start, long end) throws IOException;
+
+    }
+
+    public interface BlockConsumer {
+
+        void accept(long block, byte[] raw) throws IOException;
+
+    }
+
+    public static boolean isCompressed(File file) throws IOException {
+        if(file.length() < HEADER_SIZE) return false;
+        try(DataInputStream stream = new DataInputStream(new FileInputStream(file))) {
+            return stream.readInt() == MAGIC;
+        }
+    }
+
+    public static byte[] readBlock(RangeReader reader, long block) throws IOException {
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(reader.read(block, block + BLOCK_HEADER_SIZE)));
+        int compressedLength = header.readInt();
+        int rawLength = header.readInt();
+        long start = block + BLOCK_HEADER_SIZE;
+        return inflate(reader.read(start, start + compressedLength), rawLength);
+    }
+
+    /***
+     * Inflates every block of the stream in order, the stream
+     * has to be positioned at the start of the file.
+     */
+    public static void scan(InputStream input, BlockConsumer consumer) throws IOException {
+        DataInputStream stream = new DataInputStream(input);
+        if(stream.readInt() != MAGIC) {
+            throw new IOException("Not a block compressed file");
+        }
+
+        long position = HEADER_SIZE;
+        while(true) {
+            int compressedLength;
+            try {
+                compressedLength = stream.readInt();
+            } catch (EOFException ex) {
+                return;
+            }
+            int rawLength = stream.readInt();
+            byte[] compressed = new byte[compressedLength];
+            stream.readFully(compressed);
+
+            consumer.accept(position, inflate(compressed, rawLength));
+            position += BLOCK_HEADER_SIZE + compressedLength;
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[rawLength];
+            int inflated = 0;
+            while(inflated < rawLength) {
+                int count = inflater.inflate(raw, inflated, rawLength - inflated);
+                if(count == 0 && (inflater.finished() || inflater.needsInput())) break;
+                inflated += count;
+            }
+            if(inflated != rawLength) {
+                throw new IOException("Block inflated to " + inflated + " bytes instead of " + rawLength);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /***
+     * Collects sections into blocks and writes them to the
+     * stream once a block is full. Closing the writer frees
+     * its deflater, the stream is left open.
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream stream;
+
+        private final int blockSize;
+
+        private final ByteArrayOutputStream block;
+
+        private final Deflater deflater = new Deflater();
+
+        private byte[] buffer = new byte[0];
+
+        private long position = HEADER_SIZE;
+
+        public Writer(OutputStream stream, int blockSize) throws IOException {
+            this.stream = new DataOutputStream(stream);
+            this.blockSize = blockSize;
+            this.block = new ByteArrayOutputStream(blockSize + blockSize / 4);
+            try {
+                this.stream.writeInt(MAGIC);
+            } catch (IOException e) {
+                deflater.end();
+                throw e;
+            }
+        }
+
+        /***
+         * Adds a section to the current block.
+         *
+         * @return The block offset, and the start and end of the section inside it
+         */
+        public long[] append(byte[] section, byte[] separator) throws IOException {
+            long start = block.size();
+            block.write(section);
+            block.write(separator);
+
+            long[] location = new long[] {position, start, start + section.length};
+            if(block.size() >= blockSize) flush();
+            return location;
+        }
+
+        public void flush() throws IOException {
+            if(block.size() == 0) return;
+
+            byte[] raw = block.toByteArray();
+            if(buffer.length < raw.length + 64) buffer = new byte[raw.length + raw.length / 8 + 64];
+
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int length = 0;
+            while(!deflater.finished()) {
+                if(length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+
+            stream.writeInt(length);
+            stream.writeInt(raw.length);
+            stream.write(buffer, 0, length);
+            position += BLOCK_HEADER_SIZE + length;
+            block.reset();
+        }
+
+        public void finish() throws IOException {
+            try {
+                flush();
+                stream.flush();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+
+    }
+
+}
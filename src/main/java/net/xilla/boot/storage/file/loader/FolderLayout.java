@@ -0,0 +1,40 @@
+package net.xilla.boot.storage.file.loader;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/***
+ * How a folder loader places its files.
+ *
+ * FLAT keeps every file directly in the folder. HASHED puts
+ * each file two directories deep, named after a hash of the
+ * key (folder/ab/cd/key.json), so no single directory grows
+ * past a few thousand entries.
+ */
+public enum FolderLayout {
+
+    FLAT {
+        @Override
+        public File file(File folder, String fileName) {
+            return new File(folder, fileName);
+        }
+    },
+    HASHED {
+        @Override
+        public File file(File folder, String fileName) {
+            CRC32 crc = new CRC32();
+            crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+            String hash = String.format("%08x", crc.getValue());
+            return new File(new File(new File(folder, hash.substring(0, 2)), hash.substring(2, 4)), fileName);
+        }
+    };
+
+    public abstract File file(File folder, String fileName);
+
+    public static boolean isHashDirectory(File file) {
+        String name = file.getName();
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0 && file.isDirectory();
+    }
+
+}
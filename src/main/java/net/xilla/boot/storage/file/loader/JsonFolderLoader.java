@@ -1,14 +1,26 @@
 package net.xilla.boot.storage.file.loader;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.Getter;
+import lombok.Setter;
 import net.xilla.boot.Logger;
 import net.xilla.boot.storage.file.FileLoader;
 import net.xilla.boot.storage.file.FileSection;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /***
  * The FileLoader class is used to efficiently read
@@ -18,27 +30,148 @@ import java.util.concurrent.ConcurrentHashMap;
  * Best coupled with a data manager that also works as
  * a cache. As constant read/write's can degrade disk
  * health and application performance over time.
+ *
+ * In lazy mode the index is built from the file names
+ * alone and files are only read once their data is
+ * needed. Otherwise every file is read on startup, using
+ * the given number of reading threads.
+ *
+ * Large folders can use the HASHED layout, which spreads
+ * the files over hashed sub directories. Files found in
+ * the other layout are moved over when the folder is read.
+ *
+ * In pack mode files that haven't changed for a while are
+ * merged into pack files with an offset index, while the
+ * files still being written stay loose until the next pass.
+ *
+ * When compressed, loose files are gzipped and packs are
+ * block compressed. Both are recognised by their first
+ * bytes, so a folder can hold a mix of formats.
  */
 public class JsonFolderLoader extends ConcurrentHashMap<String, FileSection> implements FileLoader {
 
+    private static final String EXTENSION = ".json";
+
+    private static final String PACK_FOLDER = "packs";
+
     private File folder;
 
+    @Getter
+    @Setter
+    private boolean lazy;
+
+    @Getter
+    @Setter
+    private int readingThreads;
+
+    @Getter
+    @Setter
+    private FolderLayout layout;
+
+    @Getter
+    @Setter
+    private boolean packed = false;
+
+    @Getter
+    @Setter
+    private boolean compressed = false;
+
+    /***
+     * Seconds a file has to go unchanged before
+     * it is merged into a pack.
+     */
+    @Getter
+    @Setter
+    private int packAfter = 60 * 60;
+
+    /***
+     * Seconds between packing passes.
+     */
+    @Getter
+    @Setter
+    private int packTime = 60 * 10;
+
+    /***
+     * The share of replaced or removed records in a
+     * pack that gets it rewritten on the next pass.
+     */
+    @Getter
+    @Setter
+    private double repackRatio = 0.5;
+
+    private final PackFiles packFiles;
+
+    // Pack id to {records, live records}
+    private final TreeMap<Integer, long[]> packs = new TreeMap<>();
+
+    // Removed keys to the newest pack they were removed from
+    private final Map<String, Integer> tombstones = new ConcurrentHashMap<>();
+
+    private final Object tombstoneLock = new Object();
+
+    private final Object saveLock = new Object();
+
+    private final ReentrantReadWriteLock packLock = new ReentrantReadWriteLock();
+
+    private int lastPack = 0;
+
+    private ScheduledExecutorService packer = null;
 
     public JsonFolderLoader(String filePath) {
+        this(filePath, false, 1);
+    }
+
+    public JsonFolderLoader(String filePath, boolean lazy, int readingThreads) {
+        this(filePath, lazy, readingThreads, FolderLayout.FLAT);
+    }
+
+    public JsonFolderLoader(String filePath, boolean lazy, int readingThreads, FolderLayout layout) {
         this.folder = new File(filePath);
+        this.lazy = lazy;
+        this.readingThreads = readingThreads;
+        this.layout = layout;
+        this.packFiles = new PackFiles(new File(folder, PACK_FOLDER));
     }
 
     public void put(FileSection object) {
-        super.put(object.getKey(), object);
+        put(object.getKey(), object);
+    }
+
+    @Override
+    public FileSection put(String key, FileSection section) {
+        FileSection previous = super.put(key, section);
+        if(previous != section) {
+            if(previous != null) countPacked(previous, -1);
+            countPacked(section, 1);
+        }
+        return previous;
     }
 
     @Override
     public void remove(String key) {
-        super.remove(key);
-        File file = new File(folder + "/" + key + ".json");
+        FileSection previous = super.remove(key);
+        if(previous != null) countPacked(previous, -1);
+
+        File file = file(key);
         if(file.exists()) {
             if (!file.delete()) {
-                System.out.println("Failed to delete file " + file);
+                Logger.error("Failed to delete file " + file);
+            }
+        }
+
+        // Older copies may still sit in a pack, the tombstone hides them
+        synchronized (tombstoneLock) {
+            int pack;
+            synchronized (packs) {
+                pack = lastPack;
+            }
+            if(pack == 0) return;
+            try {
+                packFiles.appendTombstone(key, pack);
+                tombstones.merge(key, pack, Math::max);
+            } catch (IOException e) {
+                Logger.error("Failed to write the tombstone for " + key + " in " + folder);
+                e.printStackTrace();
             }
         }
     }
@@ -46,17 +179,29 @@ public class JsonFolderLoader extends ConcurrentHashMap<String, FileSection> imp
     // Writing to the file
 
     public void saveSections() throws FileException {
+        synchronized (saveLock) {
+            writeFiles();
+        }
+    }
+
+    private void writeFiles() throws FileException {
         for(FileSection section : values()) {
-            if(section.getRawData() == null) {
+            // Sections that came from disk and weren't replaced since are already saved
+            if(section.getRawData() == null || section.getStart() >= 0) {
 //                System.out.println("FileSection " + section.getKey() + " has null data before being saved!");
                 continue;
             }
-            File file = new File(folder + "/" + section.getKey() + ".json");
-            File tempFile = new File(folder + "/" + section.getKey() + ".json.temp");
+            File file = file(section.getKey());
+            File tempFile = new File(file.getPath() + ".temp");
+            if(!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+                throw new FileException("Failed to create folder " + file.getParentFile());
+            }
             tempFile.delete();
-            try(FileWriter fileWriter = new FileWriter(tempFile)) {
+            try(OutputStream stream = new BufferedOutputStream(compressed ? new GZIPOutputStream(new FileOutputStream(tempFile)) : new FileOutputStream(tempFile))) {
                 try {
-                    writeSection(fileWriter, section);
+                    SectionWriter writer = new SectionWriter(stream);
+                    writer.write(section);
+                    writer.flush();
                 } catch (IOException e) {
                     throw new FileException("Failed to write to the temporary file!", e);
                 }
@@ -69,17 +214,12 @@ public class JsonFolderLoader extends ConcurrentHashMap<String, FileSection> imp
             }
             if (!tempFile.renameTo(file))
                 throw new FileException("Failed to rename temporary file!");
-        }
-    }
 
-    private void writeSection(FileWriter writer, FileSection section) throws IOException {
-        Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().setPrettyPrinting().create();
-
-        String json = gson.toJson(section);
-
-        JsonObject jsonObject = gson.fromJson(json, JsonObject.class);
-        jsonObject.add("data", section.getRawData());
-        writer.append(gson.toJson(jsonObject));
+            // The file has it now, only changed data is written again
+            section.setStart(0);
+            section.setEnd(file.length());
+            section.clearData();
+        }
     }
 
     // Reading from the file
@@ -91,55 +231,207 @@ public class JsonFolderLoader extends ConcurrentHashMap<String, FileSection> imp
             }
         }
 
-        for(File file : folder.listFiles()) {
-            FileInputStream stream = new FileInputStream(file);
+        // Loose files are newer than anything packed, so they go last
+        readPacks();
+        readLoose(listFiles());
 
-            StringBuilder builder = new StringBuilder();
-            StringBuilder tempBuffer = new StringBuilder();
-            int start = 0;
+        if(packed) startPacker();
+    }
 
-            int index = 0;
-            while(stream.available() > 0) {
+    private void readLoose(Collection<File> files) {
+        if(lazy) {
+            // The key is the file name, the content can wait
+            for(File file : files) {
+                String name = file.getName();
+                FileSection section = new FileSection(name.substring(0, name.length() - EXTENSION.length()), null, this);
+                section.setStart(0);
+                put(section);
+            }
+            return;
+        }
 
-                char character = (char)stream.read();
+        if(readingThreads <= 1) {
+            for(File file : files) {
+                readIndex(file);
+            }
+            return;
+        }
 
-                builder.append(character);
+        ExecutorService executor = Executors.newFixedThreadPool(readingThreads);
+        for(File file : files) {
+            executor.execute(() -> readIndex(file));
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.DAYS);
+        } catch (InterruptedException interruptedException) {
+            interruptedException.printStackTrace();
+        }
+    }
 
-                tempBuffer.append(character);
-                if(tempBuffer.length() > 4) {
-                    tempBuffer.deleteCharAt(0);
-                }
+    /***
+     * Lists the data files of both layouts, moving the ones
+     * that aren't where the current layout expects them.
+     */
+    private Collection<File> listFiles() throws IOException {
+        File[] top = folder.listFiles();
+        if(top == null) {
+            throw new IOException("Failed to list folder " + folder);
+        }
 
-                if(tempBuffer.toString().endsWith("\n}")) {
+        List<File> found = new ArrayList<>();
+        List<File> hashDirectories = new ArrayList<>();
+        for(File file : top) {
+            if(file.getName().endsWith(EXTENSION) && file.isFile()) {
+                found.add(file);
+            } else if(FolderLayout.isHashDirectory(file)) {
+                hashDirectories.add(file);
+            }
+        }
+        for(File first : hashDirectories) {
+            File[] seconds = first.listFiles(FolderLayout::isHashDirectory);
+            if(seconds == null) continue;
+            for(File second : seconds) {
+                File[] hashed = second.listFiles((dir, name) -> name.endsWith(EXTENSION));
+                if(hashed != null) found.addAll(Arrays.asList(hashed));
+            }
+        }
 
-                    String json;
+        Set<File> files = new LinkedHashSet<>(found.size());
+        int moved = 0;
+        for(File file : found) {
+            File expected = layout.file(folder, file.getName());
+            if(file.equals(expected)) {
+                files.add(file);
+                continue;
+            }
 
-                    json = builder.substring(0, builder.length());
+            // Whichever copy is newer wins if both layouts have the key
+            if(expected.exists() && expected.lastModified() >= file.lastModified()) {
+                Files.delete(file.toPath());
+                continue;
+            }
+            if(!expected.getParentFile().exists() && !expected.getParentFile().mkdirs()) {
+                throw new IOException("Failed to create folder " + expected.getParentFile());
+            }
+            Files.move(file.toPath(), expected.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            files.add(expected);
+            moved++;
+        }
 
-                    try {
-                        Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+        if(moved > 0) {
+            Logger.info("Moved " + moved + " files in " + folder + " to the " + layout + " layout");
+            if(layout == FolderLayout.FLAT) {
+                for(File first : hashDirectories) {
+                    File[] seconds = first.listFiles();
+                    if(seconds != null) for(File second : seconds) second.delete();
+                    first.delete();
+                }
+            }
+        }
+        return files;
+    }
 
-                        FileSection section = gson.fromJson(json, FileSection.class);
-                        section.setFileLoader(this);
-                        section.setStart(start);
-                        section.setEnd(index);
-                        section.clearData();
+    private void readPacks() throws IOException {
+        List<Integer> ids = packFiles.list();
+        Map<String, Integer> removed = packFiles.readTombstones();
 
-                        put(section);
+        synchronized (packs) {
+            packs.clear();
+            lastPack = 0;
+            for(int id : ids) {
+                packs.put(id, new long[] {0, 0});
+                lastPack = Math.max(lastPack, id);
+            }
+        }
 
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                    builder = new StringBuilder();
-                    start = index;
+        // Later packs hold newer copies of a key
+        for(int id : ids) {
+            List<FileSection> sections = packFiles.readIndex(id, this);
+            synchronized (packs) {
+                packs.get(id)[0] = sections.size();
+            }
+            for(FileSection section : sections) {
+                put(section);
+            }
+        }
+
+        synchronized (tombstoneLock) {
+            tombstones.clear();
+            for(Map.Entry<String, Integer> entry : removed.entrySet()) {
+                FileSection section = get(entry.getKey());
+                if(section != null && section.getSegment() >= 0 && section.getSegment() <= entry.getValue()) {
+                    super.remove(entry.getKey());
+                    countPacked(section, -1);
                 }
-                index++;
             }
+            tombstones.putAll(removed);
+            synchronized (packs) {
+                for(int pack : removed.values()) lastPack = Math.max(lastPack, pack);
+            }
+            pruneTombstones();
+        }
+    }
+
+    private void readIndex(File file) {
+        FileSection section = readSectionWithData(file, 0, file.length());
+        if(section != null) {
+            // Only the key and location are kept, the data is read again once it is needed
+            section.clearData();
+            put(section);
         }
     }
 
     public FileSection loadData(FileSection section) throws IOException {
-        return readSectionWithData(new File(folder + "/" + section.getKey() + ".json"), section.getStart(), section.getEnd());
+        // Held so a packing pass can't delete the file being read
+        packLock.readLock().lock();
+        try {
+            if(section.getSegment() >= 0) {
+                byte[] bytes = packFiles.read(section);
+                return parseSection(new String(bytes, StandardCharsets.UTF_8), section.getStart(), section.getEnd(), "pack " + section.getSegment() + " in " + folder);
+            }
+            return readSectionWithData(file(section.getKey()), section.getStart(), section.getEnd());
+        } finally {
+            packLock.readLock().unlock();
+        }
+    }
+
+    /***
+     * Reads packed sections in pack order, so every block is
+     * only inflated once, and loose files in parallel.
+     */
+    @Override
+    public Map<String, FileSection> loadAllData(Collection<FileSection> sections) throws IOException {
+        List<FileSection> packed = new ArrayList<>();
+        List<FileSection> loose = new ArrayList<>();
+        for(FileSection section : sections) {
+            if(section.getSegment() >= 0) {
+                packed.add(section);
+            } else {
+                loose.add(section);
+            }
+        }
+        packed.sort(Comparator.comparingInt(FileSection::getSegment)
+                .thenComparingLong(FileSection::getBlock)
+                .thenComparingLong(FileSection::getStart));
+
+        Map<String, FileSection> loaded = new ConcurrentHashMap<>(sections.size() * 4 / 3 + 1);
+        packLock.readLock().lock();
+        try {
+            for(FileSection section : packed) {
+                byte[] bytes = packFiles.read(section);
+                FileSection data = parseSection(new String(bytes, StandardCharsets.UTF_8), section.getStart(), section.getEnd(), "pack " + section.getSegment() + " in " + folder);
+                if(data != null) loaded.put(section.getKey(), data);
+            }
+            // The calling thread takes part, so this can't starve a pool it runs on
+            loose.parallelStream().forEach(section -> {
+                FileSection data = readSectionWithData(file(section.getKey()), section.getStart(), section.getEnd());
+                if(data != null) loaded.put(section.getKey(), data);
+            });
+        } finally {
+            packLock.readLock().unlock();
+        }
+        return loaded;
     }
 
     @Override
@@ -147,43 +439,185 @@ public class JsonFolderLoader extends ConcurrentHashMap<String, FileSection> imp
         get(section).clearData();
     }
 
-    public FileSection readSectionWithData(File file, int start, int end) throws IOException {
-
-//        StringBuilder builder = new StringBuilder();
-//
-//        for(int i = 0; i < file.length(); i++) {
-//
-//            char character = (char)stream.read();
-//
-//            builder.append(character);
-//        }
-//        String json = builder.toString();
+    public FileSection readSectionWithData(File file, long start, long end) {
+        String json;
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            StringBuilder buffer = new StringBuilder();
-            String line = reader.readLine();
-            while (line != null) {
-                buffer.append(line);
-                line = reader.readLine();
-            }
+            json = new String(readLoose(file), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            Logger.error("Failed to load object from file " + file);
+            ex.printStackTrace();
+            return null;
+        }
+        return parseSection(json, start, end, "file " + file);
+    }
 
-            Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+    private byte[] readLoose(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if(bytes.length < 2 || bytes[0] != (byte) 0x1f || bytes[1] != (byte) 0x8b) {
+            return bytes;
+        }
+        try(InputStream stream = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return stream.readAllBytes();
+        }
+    }
 
-            JsonObject jsonObject = new GsonBuilder().setLenient().create().fromJson(buffer.toString(), JsonObject.class);
+    private FileSection parseSection(String json, long start, long end, String source) {
+        try {
+            JsonObject jsonObject = JsonParser.parseString(json).getAsJsonObject();
 
-            FileSection section = gson.fromJson(jsonObject, FileSection.class);
-            section.setFileLoader(this);
+            FileSection section = new FileSection(jsonObject.get("key").getAsString(), jsonObject.getAsJsonObject("data"), this);
             section.setStart(start);
             section.setEnd(end);
-            section.setData(jsonObject.getAsJsonObject("data"));
-//            System.out.println("Raw data " + jsonObject);
             return section;
         } catch (Exception ex) {
-            Logger.error("Failed to load object with starting position " + start);
+            Logger.error("Failed to load object from " + source);
+            Logger.error("Raw json string: " + json);
             ex.printStackTrace();
             return null;
         }
     }
 
+    // Packing
+
+    /***
+     * Merges the loose files that went unchanged for packAfter
+     * seconds into a new pack, along with the live records of
+     * every pack that passed the repack ratio.
+     */
+    public void pack() throws IOException {
+        synchronized (saveLock) {
+            long coldBefore = System.currentTimeMillis() - packAfter * 1000L;
+            List<FileSection> cold = new ArrayList<>();
+            for(FileSection section : values()) {
+                if(section.getSegment() < 0 && section.getStart() >= 0 && file(section.getKey()).lastModified() < coldBefore) {
+                    cold.add(section);
+                }
+            }
+
+            List<Integer> repack = new ArrayList<>();
+            int id;
+            synchronized (packs) {
+                for(Map.Entry<Integer, long[]> entry : packs.entrySet()) {
+                    long[] stats = entry.getValue();
+                    if(stats[0] > 0 && (double) (stats[0] - stats[1]) / stats[0] >= repackRatio) repack.add(entry.getKey());
+                }
+                if(cold.isEmpty() && repack.isEmpty()) return;
+                id = ++lastPack;
+            }
+
+            // Current section and where it was copied to
+            List<FileSection[]> moved = new ArrayList<>();
+            int records;
+            try(PackFiles.Writer writer = packFiles.create(id, compressed)) {
+                for(int old : repack) {
+                    for(FileSection entry : packFiles.readIndex(old, this)) {
+                        FileSection current = get(entry.getKey());
+                        if(current == null) continue;
+
+                        boolean live = current.getSegment() == old && current.getBlock() == entry.getBlock() && current.getStart() == entry.getStart();
+                        // A replacement that isn't saved yet still needs the old copy,
+                        // unless the key was removed in between
+                        if(!live && (current.getStart() >= 0 || tombstones.getOrDefault(entry.getKey(), 0) >= old)) continue;
+
+                        FileSection location = writer.append(entry.getKey(), packFiles.read(entry), this);
+                        if(live) moved.add(new FileSection[] {current, location});
+                    }
+                }
+                for(FileSection section : cold) {
+                    byte[] bytes = readLoose(file(section.getKey()));
+                    moved.add(new FileSection[] {section, writer.append(section.getKey(), bytes, this)});
+                }
+                records = writer.size();
+                // Nothing left to keep, the old packs only go away
+                if(records > 0) writer.finish();
+            }
+
+            List<FileSection> packedLoose = new ArrayList<>();
+            packLock.writeLock().lock();
+            try {
+                long live = 0;
+                for(FileSection[] pair : moved) {
+                    FileSection current = pair[0];
+                    // Replaced or removed while the pack was written
+                    if(get(current.getKey()) != current) continue;
+
+                    if(current.getSegment() < 0) packedLoose.add(current);
+                    current.setSegment(pair[1].getSegment());
+                    current.setBlock(pair[1].getBlock());
+                    current.setStart(pair[1].getStart());
+                    current.setEnd(pair[1].getEnd());
+                    live++;
+                }
+
+                synchronized (packs) {
+                    if(records > 0) packs.put(id, new long[] {records, live});
+                    for(int old : repack) packs.remove(old);
+                }
+                for(int old : repack) {
+                    packFiles.delete(old);
+                }
+            } finally {
+                packLock.writeLock().unlock();
+            }
+
+            for(FileSection section : packedLoose) {
+                File file = file(section.getKey());
+                if(!file.delete() && file.exists()) {
+                    Logger.warn("Failed to delete packed file " + file);
+                }
+            }
+
+            synchronized (tombstoneLock) {
+                pruneTombstones();
+            }
+            Logger.debug("Packed " + packedLoose.size() + " files and rewrote " + repack.size() + " packs in " + folder);
+        }
+    }
+
+    private void packIfNeeded() {
+        try {
+            pack();
+        } catch (Exception ex) {
+            Logger.error("Failed to pack the files in " + folder);
+            ex.printStackTrace();
+        }
+    }
+
+    private void startPacker() {
+        if(packer != null || packTime <= 0) return;
+
+        packer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JsonFolderLoader packer (" + folder + ")");
+            thread.setDaemon(true);
+            return thread;
+        });
+        packer.scheduleWithFixedDelay(this::packIfNeeded, packTime, packTime, TimeUnit.SECONDS);
+    }
+
+    /***
+     * Drops the tombstones that no remaining pack can hold a
+     * copy for. Has to be called holding the tombstone lock.
+     */
+    private void pruneTombstones() throws IOException {
+        int oldest;
+        synchronized (packs) {
+            oldest = packs.isEmpty() ? Integer.MAX_VALUE : packs.firstKey();
+        }
+        if(tombstones.values().removeIf(pack -> pack < oldest)) {
+            packFiles.writeTombstones(new HashMap<>(tombstones));
+        }
+    }
+
+    private void countPacked(FileSection section, int change) {
+        if(section.getSegment() < 0) return;
+        synchronized (packs) {
+            long[] stats = packs.get(section.getSegment());
+            if(stats != null) stats[1] += change;
+        }
+    }
+
+    private File file(String key) {
+        return layout.file(folder, key + EXTENSION);
+    }
 
 }
@@ -1,17 +1,28 @@
 package net.xilla.boot.storage.file.loader;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import lombok.Getter;
+import lombok.Setter;
 import net.xilla.boot.Logger;
+import net.xilla.boot.api.Pair;
 import net.xilla.boot.storage.file.FileLoader;
 import net.xilla.boot.storage.file.FileSection;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /***
  * The FileLoader class is used to efficiently read
@@ -21,16 +32,81 @@ import java.util.concurrent.ConcurrentHashMap;
  * Best coupled with a data manager that also works as
  * a cache. As constant read/write's can degrade disk
  * health and application performance over time.
+ *
+ * In mapped mode the data file is kept memory mapped and
+ * sections are decoded straight from the mapping, instead
+ * of opening the file for every read.
+ *
+ * A save rewrites the whole data file, sections that weren't
+ * changed are copied over as raw bytes. For large files that
+ * change a little at a time, LogLoader only appends the changes.
+ *
+ * Every save also writes a binary index next to the data
+ * file, which replaces the full scan on the next startup
+ * as long as it still matches the data file.
+ *
+ * A compressed loader writes the sections as deflated
+ * blocks, reading a section only inflates its own block.
+ * Either format is detected when the file is read.
  */
 public class JsonLoader extends ConcurrentHashMap<String, FileSection> implements FileLoader {
 
+    private static final byte[] SEPARATOR = ",\n".getBytes(StandardCharsets.UTF_8);
+
     private File file;
 
     private File tempFile;
 
+    private File indexFile;
+
+    @Getter
+    private final boolean mapped;
+
+    @Getter
+    private final boolean compressed;
+
+    /***
+     * Bytes of sections collected before a block
+     * is compressed and written.
+     */
+    @Getter
+    @Setter
+    private int blockSize = BlockFile.DEFAULT_BLOCK_SIZE;
+
+    @Getter
+    @Setter
+    private boolean useIndexFile = true;
+
+    /***
+     * Checks the whole data file against the index
+     * checksum on startup, instead of only its size
+     * and modification time.
+     */
+    @Getter
+    @Setter
+    private boolean verifyIndexFile = false;
+
+    private volatile MappedFile mapping = null;
+
+    // Offset and content of the last block that was inflated
+    private volatile Pair<Long, byte[]> lastBlock = null;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
     public JsonLoader(String filePath) {
+        this(filePath, false);
+    }
+
+    public JsonLoader(String filePath, boolean mapped) {
+        this(filePath, mapped, false);
+    }
+
+    public JsonLoader(String filePath, boolean mapped, boolean compressed) {
         this.file = new File(filePath);
         this.tempFile = new File(filePath + ".temp");
+        this.indexFile = new File(filePath + ".index");
+        this.mapped = mapped;
+        this.compressed = compressed;
     }
 
     @Override
@@ -52,44 +128,101 @@ public class JsonLoader extends ConcurrentHashMap<String, FileSection> implement
     public void saveSections() throws FileException {
         tempFile.delete();
 
-        try(FileWriter fileWriter = new FileWriter(tempFile)) {
-            for(FileSection section : values()) {
+        // Unchanged sections are copied straight from the current file,
+        // in file order so the old file is read front to back.
+        List<FileSection> sections = new ArrayList<>(values());
+        sections.sort(Comparator.<FileSection>comparingLong(section -> section.getStart() < 0 ? Long.MAX_VALUE : section.getBlock())
+                .thenComparingLong(FileSection::getStart));
+
+        List<Pair<FileSection, long[]>> offsets = new ArrayList<>();
+        CRC32 checksum = new CRC32();
+        try(OutputStream stream = new BufferedOutputStream(new CheckedOutputStream(new FileOutputStream(tempFile), checksum), JsonSectionScanner.BUFFER_SIZE);
+            RandomAccessFile source = file.exists() ? new RandomAccessFile(file, "r") : null;
+            BlockFile.Writer blocks = compressed ? new BlockFile.Writer(stream, blockSize) : null) {
+            SectionWriter writer = new SectionWriter(stream);
+            for(FileSection section : sections) {
                 try {
-                    writeSection(fileWriter, section);
+                    boolean stored = section.getRawData() == null && section.getStart() >= 0 && source != null;
+                    if(blocks != null) {
+                        byte[] bytes = stored ? readSectionBytes(section, (start, end) -> readBytes(source, start, end)) : SectionWriter.toBytes(section.getKey(), section.getData());
+                        offsets.add(new Pair<>(section, blocks.append(bytes, SEPARATOR)));
+                        continue;
+                    }
+
+                    long[] location;
+                    if(stored) {
+                        long start = writer.getPosition();
+                        writer.writeRaw(readSectionBytes(section, (from, to) -> readBytes(source, from, to)));
+                        location = new long[] {start, writer.getPosition()};
+                    } else {
+                        location = writer.write(section.getKey(), section.getData());
+                    }
+                    writer.writeRaw(SEPARATOR);
+                    offsets.add(new Pair<>(section, new long[] {-1, location[0], location[1]}));
                 } catch (IOException e) {
                     throw new FileException("Failed to write to the temporary file!", e);
                 }
-            };
+            }
+            if(blocks != null) blocks.finish();
+            writer.flush();
         } catch (IOException e) {
             throw new FileException("Failed to open the file writer for the temporary file!", e);
         }
 
+        // Readers are held off while the file is swapped, the
+        // old offsets are only valid for the old file.
+        lock.writeLock().lock();
         try {
-            if(!Files.deleteIfExists(file.toPath()) && file.exists()) {
-                throw new FileException("Failed to delete the original file!");
+            // The old file can't be deleted while it is still mapped
+            unmap();
+            try {
+                if(!Files.deleteIfExists(file.toPath()) && file.exists()) {
+                    throw new FileException("Failed to delete the original file!");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new FileException("Failed to delete the original file.");
+            }
+            if (!tempFile.renameTo(file))
+                throw new FileException("Failed to rename temporary file!");
+
+            lastBlock = null;
+            for(Pair<FileSection, long[]> offset : offsets) {
+                offset.getKey().setBlock(offset.getValue()[0]);
+                offset.getKey().setStart(offset.getValue()[1]);
+                offset.getKey().setEnd(offset.getValue()[2]);
+                offset.getKey().clearData();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new FileException("Failed to delete the original file.");
-        }
-        if (!tempFile.renameTo(file))
-            throw new FileException("Failed to rename temporary file!");
-    }
-
-    private void writeSection(FileWriter writer, FileSection section) throws IOException {
-        Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().setPrettyPrinting().create();
 
-        String json = gson.toJson(section);
+            if(mapped) {
+                try {
+                    mapping = new MappedFile(file);
+                } catch (IOException e) {
+                    mapping = null;
+                    throw new FileException("Failed to map the saved file!", e);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
 
-        JsonObject jsonObject = gson.fromJson(json, JsonObject.class);
-        jsonObject.add("data", section.getData());
-        writer.append(gson.toJson(jsonObject)).append(",\n");
+        if(useIndexFile) {
+            List<FileSection> indexed = new ArrayList<>(offsets.size());
+            for(Pair<FileSection, long[]> offset : offsets) {
+                indexed.add(offset.getKey());
+            }
+            try {
+                SectionIndexFile.write(indexFile, file, checksum.getValue(), indexed);
+            } catch (IOException e) {
+                Logger.warn("Failed to write the index file for " + file + ", the next startup will scan the data file");
+                indexFile.delete();
+            }
+        }
     }
 
     // Reading from the file
 
     public void readFile() throws IOException {
-//        Logger.debug("File " + file);
         if(!file.exists()) {
             file.getParentFile().mkdirs();
             if(!file.createNewFile()) {
@@ -97,113 +230,166 @@ public class JsonLoader extends ConcurrentHashMap<String, FileSection> implement
             }
         }
 
-        FileInputStream stream = new FileInputStream(file);
-
-        StringBuilder builder = new StringBuilder();
-        StringBuilder tempBuffer = new StringBuilder();
-        int start = 0;
-
-        int index = 0;
-        while(stream.available() > 0) {
-
-            char character = (char)stream.read();
-
-            builder.append(character);
-
-            tempBuffer.append(character);
-            if(tempBuffer.length() > 4) {
-                tempBuffer.deleteCharAt(0);
-            }
-
-//            Logger.debug("Data " + tempBuffer.toString());
-            if(tempBuffer.toString().endsWith("\n},\n") || stream.available() == 0) {
-
-//                index++;
-                String json = builder.toString();
-
-//                Logger.debug("Buff " + builder.toString());
-
-//                int shift = 0;
-//                if(builder.toString().startsWith("\n"))
-//                    shift = 1;
-//                Logger.debug("Shift " + shift);
-
-                if(tempBuffer.toString().endsWith(",\n"))
-                    json = builder.substring(0, builder.length() - 2);
-                else if(tempBuffer.toString().endsWith(","))
-                    json = builder.substring(0, builder.length() - 1);
-
-//                Logger.debug("LOADING JSON \n" + json);
-
-                try {
-//                    Logger.debug("Trying to read json " + json);
-                    Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
-
-                    FileSection section = gson.fromJson(json, FileSection.class);
-                    section.setFileLoader(this);
-                    section.setStart(start);
-                    if(tempBuffer.toString().endsWith(",\n"))
-                        section.setEnd(index - 1);
-                    else
-                        section.setEnd(index);
-
+        lock.writeLock().lock();
+        try {
+            List<FileSection> indexed = useIndexFile ? SectionIndexFile.read(indexFile, file, verifyIndexFile, this) : null;
+            if(indexed != null) {
+                for(FileSection section : indexed) {
                     put(section);
-
-                } catch (Exception ex) {
-                    ex.printStackTrace();
                 }
-                builder = new StringBuilder();
-                start = index;
+            } else if(BlockFile.isCompressed(file)) {
+                try(InputStream stream = new BufferedInputStream(new FileInputStream(file), JsonSectionScanner.BUFFER_SIZE)) {
+                    BlockFile.scan(stream, (block, raw) -> new JsonSectionScanner((key, start, end) -> {
+                        FileSection section = new FileSection(key, null, this);
+                        section.setBlock(block);
+                        section.setStart(start);
+                        section.setEnd(end);
+                        put(section);
+                    }).feed(raw, 0, raw.length));
+                }
+            } else {
+                try(FileInputStream stream = new FileInputStream(file)) {
+                    new JsonSectionScanner((key, start, end) -> {
+                        FileSection section = new FileSection(key, null, this);
+                        section.setStart(start);
+                        section.setEnd(end);
+                        put(section);
+                    }).scan(stream);
+                }
             }
-            index++;
-        }
 
-        stream.close();
+            unmap();
+            mapping = mapped ? new MappedFile(file) : null;
+            lastBlock = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public FileSection loadData(FileSection section) throws IOException {
-        return readSectionWithData(section.getStart(), section.getEnd());
-    }
-
-    public FileSection readSectionWithData(int start, int end) throws IOException {
-        FileInputStream stream = new FileInputStream(file);
-
-        StringBuilder builder = new StringBuilder();
-
-        stream.skip(start);
-
-        for(int i = start; i < end; i++) {
+        lock.readLock().lock();
+        try {
+            if(section.getBlock() < 0) {
+                return readSectionWithData(section.getStart(), section.getEnd());
+            }
 
-            char character = (char)stream.read();
+            byte[] bytes;
+            try(RandomAccessFile access = mapping == null ? new RandomAccessFile(file, "r") : null) {
+                bytes = readSectionBytes(section, (start, end) -> readBytes(access, start, end));
+            }
+            return parseSection(new String(bytes, StandardCharsets.UTF_8), section.getStart(), section.getEnd());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            builder.append(character);
+    /***
+     * Reads the sections in file order through a single open
+     * file, so the disk is read front to back and every block
+     * is only inflated once.
+     */
+    @Override
+    public Map<String, FileSection> loadAllData(Collection<FileSection> sections) throws IOException {
+        List<FileSection> sorted = new ArrayList<>(sections.size());
+        for(FileSection section : sections) {
+            if(section.getStart() >= 0) sorted.add(section);
+        }
+        sorted.sort(Comparator.comparingLong(FileSection::getBlock).thenComparingLong(FileSection::getStart));
+
+        Map<String, FileSection> loaded = new HashMap<>(sorted.size() * 4 / 3 + 1);
+        lock.readLock().lock();
+        try(RandomAccessFile access = mapping == null ? new RandomAccessFile(file, "r") : null) {
+            for(FileSection section : sorted) {
+                byte[] bytes = readSectionBytes(section, (start, end) -> readBytes(access, start, end));
+                FileSection data = parseSection(new String(bytes, StandardCharsets.UTF_8), section.getStart(), section.getEnd());
+                if(data != null) loaded.put(section.getKey(), data);
+            }
+        } finally {
+            lock.readLock().unlock();
         }
-        String json = builder.toString();
+        return loaded;
+    }
 
-//        Logger.debug("Attempting to read json " + json);
-        Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+    public FileSection readSectionWithData(long start, long end) throws IOException {
+        return parseSection(readString(start, end), start, end);
+    }
 
-        JsonObject jsonObject = null;
+    private FileSection parseSection(String json, long start, long end) {
         try {
-            jsonObject = new GsonBuilder().setLenient().create().fromJson(json, JsonObject.class);
+            JsonObject jsonObject = JsonParser.parseString(json).getAsJsonObject();
 
-            FileSection section = gson.fromJson(json, FileSection.class);
-            section.setFileLoader(this);
+            FileSection section = new FileSection(jsonObject.get("key").getAsString(), jsonObject.getAsJsonObject("data"), this);
             section.setStart(start);
             section.setEnd(end);
-            section.setData(jsonObject.getAsJsonObject("data"));
-//            Logger.debug("Raw data " + jsonObject);
-            stream.close();
-
-//            Logger.debug("Loaded section with data " + json);
             return section;
         } catch (Exception ex) {
             Logger.error("Failed to load object with starting position " + start);
             Logger.error("Raw json string: " + json);
             ex.printStackTrace();
-            stream.close();
             return null;
         }
     }
 
+    /***
+     * Reads a section as it is stored, inflating its
+     * block first when the file is compressed.
+     */
+    private byte[] readSectionBytes(FileSection section, BlockFile.RangeReader reader) throws IOException {
+        if(section.getBlock() < 0) {
+            return reader.read(section.getStart(), section.getEnd());
+        }
+
+        Pair<Long, byte[]> cached = lastBlock;
+        byte[] raw;
+        if(cached != null && cached.getKey() == section.getBlock()) {
+            raw = cached.getValue();
+        } else {
+            raw = BlockFile.readBlock(reader, section.getBlock());
+            lastBlock = new Pair<>(section.getBlock(), raw);
+        }
+        return Arrays.copyOfRange(raw, (int) section.getStart(), (int) section.getEnd());
+    }
+
+    private byte[] readBytes(RandomAccessFile source, long start, long end) throws IOException {
+        MappedFile mapping = this.mapping;
+        if(mapping != null) {
+            return mapping.read(start, end);
+        }
+
+        byte[] bytes = new byte[(int)(end - start)];
+        source.seek(start);
+        source.readFully(bytes);
+        return bytes;
+    }
+
+    private String readString(long start, long end) throws IOException {
+        // Held so the mapping isn't closed by a save while it is read
+        lock.readLock().lock();
+        try {
+            MappedFile mapping = this.mapping;
+            if(mapping != null) {
+                return mapping.readString(start, end);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        byte[] bytes = new byte[(int)(end - start)];
+        try(RandomAccessFile access = new RandomAccessFile(file, "r")) {
+            access.seek(start);
+            access.readFully(bytes);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /***
+     * Closes the current mapping, callers hold the write lock
+     * so no reader is still using it.
+     */
+    private void unmap() {
+        MappedFile mapping = this.mapping;
+        this.mapping = null;
+        if(mapping != null) mapping.close();
+    }
+
 }
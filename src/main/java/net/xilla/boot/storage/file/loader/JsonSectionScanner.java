@@ -0,0 +1,167 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.stream.JsonReader;
+import net.xilla.boot.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/***
+ * Walks a stream of comma separated json sections in large
+ * chunks and reports where every section starts and ends.
+ *
+ * Only the structure of the json is tracked, the section
+ * itself is never built into a string. The "key" of each
+ * section is the only value that gets decoded, using gson's
+ * streaming reader.
+ *
+ * Offsets are byte offsets and match the ones the loaders
+ * have always used, the start of a section is the byte after
+ * the previous separator and the end is the byte after the
+ * closing bracket.
+ */
+public class JsonSectionScanner {
+
+    public interface SectionConsumer {
+
+        void accept(String key, long start, long end);
+
+    }
+
+    public static final int BUFFER_SIZE = 1 << 18;
+
+    private final SectionConsumer consumer;
+
+    private final ByteArrayOutputStream capture = new ByteArrayOutputStream(64);
+
+    private long position = 0;
+
+    private long sectionStart = 0;
+
+    private int depth = 0;
+
+    private boolean inString = false;
+
+    private boolean escaped = false;
+
+    private boolean capturing = false;
+
+    private boolean afterColon = false;
+
+    private String lastName = null;
+
+    private String key = null;
+
+    public JsonSectionScanner(SectionConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    public JsonSectionScanner(SectionConsumer consumer, long position) {
+        this(consumer);
+        this.position = position;
+        this.sectionStart = position;
+    }
+
+    public void scan(InputStream stream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while((read = stream.read(buffer)) != -1) {
+            feed(buffer, 0, read);
+        }
+    }
+
+    public void feed(byte[] buffer, int offset, int length) throws IOException {
+        int limit = offset + length;
+        for(int i = offset; i < limit; i++, position++) {
+            byte b = buffer[i];
+
+            if(inString) {
+                if(capturing) capture.write(b);
+
+                if(escaped) {
+                    escaped = false;
+                } else if(b == '\\') {
+                    escaped = true;
+                } else if(b == '"') {
+                    inString = false;
+                    if(capturing) finishString();
+                }
+                continue;
+            }
+
+            switch (b) {
+                case '"':
+                    inString = true;
+                    if(depth == 1) {
+                        capturing = true;
+                        capture.reset();
+                        capture.write(b);
+                    }
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    if(depth == 1) {
+                        key = null;
+                        lastName = null;
+                        afterColon = false;
+                    }
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if(depth == 0) {
+                        if(key != null) {
+                            consumer.accept(key, sectionStart, position + 1);
+                        } else {
+                            Logger.warn("Skipping a section without a key at position " + sectionStart);
+                        }
+                        key = null;
+                    }
+                    break;
+                case ':':
+                    if(depth == 1) afterColon = true;
+                    break;
+                case ',':
+                    if(depth == 1) afterColon = false;
+                    else if(depth == 0) sectionStart = position + 1;
+                    break;
+            }
+        }
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    private void finishString() throws IOException {
+        capturing = false;
+        String value = decode(capture.toByteArray());
+        if(afterColon) {
+            if("key".equals(lastName)) key = value;
+        } else {
+            lastName = value;
+        }
+    }
+
+    private static String decode(byte[] quoted) throws IOException {
+        boolean escapes = false;
+        for(byte b : quoted) {
+            if(b == '\\') {
+                escapes = true;
+                break;
+            }
+        }
+        if(!escapes) {
+            return new String(quoted, 1, quoted.length - 2, StandardCharsets.UTF_8);
+        }
+
+        JsonReader reader = new JsonReader(new StringReader(new String(quoted, StandardCharsets.UTF_8)));
+        reader.setLenient(true);
+        return reader.nextString();
+    }
+
+}
@@ -0,0 +1,619 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import lombok.Getter;
+import lombok.Setter;
+import net.xilla.boot.Logger;
+import net.xilla.boot.api.Pair;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/***
+ * An append only loader. Instead of rewriting everything on
+ * save, the sections that changed are appended as single json
+ * lines to the end of a log segment, so a save costs as much
+ * as the data that changed.
+ *
+ * The index keeps the segment and offsets of the latest record
+ * for every key. Once a segment grows past the segment size a
+ * new one is started, and a background compactor merges the
+ * sealed segments while dropping overwritten and removed records.
+ */
+public class LogLoader extends ConcurrentHashMap<String, FileSection> implements FileLoader {
+
+    private static final Gson gson = new Gson();
+
+    private static final String EXTENSION = ".log";
+
+    private static final String COMPACT_EXTENSION = ".compact";
+
+    private final File folder;
+
+    @Getter
+    @Setter
+    private long segmentSize;
+
+    /***
+     * Seconds between checks of the compactor.
+     */
+    @Getter
+    @Setter
+    private int compactionTime = 60;
+
+    /***
+     * Share of dead bytes in the sealed segments
+     * that makes the compactor merge them.
+     */
+    @Getter
+    @Setter
+    private double compactionRatio = 0.5;
+
+    // Segment id -> {total bytes, live bytes}
+    private final TreeMap<Integer, long[]> segments = new TreeMap<>();
+
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+
+    private final Set<String> removed = ConcurrentHashMap.newKeySet();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Object appendLock = new Object();
+
+    private final Object compactLock = new Object();
+
+    private int active = 0;
+
+    private long activeLength = 0;
+
+    private FileOutputStream appender = null;
+
+    private OutputStream appendStream = null;
+
+    private ScheduledExecutorService compactor = null;
+
+    public LogLoader(String folderPath) {
+        this(folderPath, 64L * 1024 * 1024);
+    }
+
+    public LogLoader(String folderPath, long segmentSize) {
+        this.folder = new File(folderPath);
+        this.segmentSize = segmentSize;
+    }
+
+    public void put(FileSection section) {
+        put(section.getKey(), section);
+    }
+
+    @Override
+    public FileSection put(String key, FileSection section) {
+        lock.readLock().lock();
+        try {
+            FileSection previous = super.put(key, section);
+            // A fresh section still points at the last record
+            // until it gets written itself.
+            if(previous != null && previous != section && section.getSegment() < 0) {
+                section.setSegment(previous.getSegment());
+                section.setStart(previous.getStart());
+                section.setEnd(previous.getEnd());
+            }
+            removed.remove(key);
+            return previous;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        lock.readLock().lock();
+        try {
+            FileSection previous = super.remove(key);
+            fingerprints.remove(key);
+            if(previous != null && previous.getSegment() >= 0) {
+                markDead(previous);
+                removed.add(key);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        // Everything on disk gets a tombstone on the next save,
+        // reading the file again resets this.
+        for(FileSection section : values()) {
+            if(section.getSegment() >= 0) removed.add(section.getKey());
+        }
+        fingerprints.clear();
+        super.clear();
+    }
+
+    @Override
+    public void unloadData(String section) {
+        FileSection fileSection = get(section);
+        if(fileSection != null) fileSection.clearData();
+    }
+
+    // Writing to the log
+
+    public void saveSections() throws FileException {
+        synchronized (appendLock) {
+            List<String> tombstones = new ArrayList<>(removed);
+            List<Pair<FileSection, long[]>> written = new ArrayList<>();
+
+            try {
+                if(appendStream == null) openSegment();
+
+                // Tombstones go first, a key that was removed and put
+                // again must end up with the put as its last record.
+                for(String key : tombstones) {
+                    append(tombstone(key), false);
+                }
+
+                for(FileSection section : values()) {
+                    JsonObject data = section.getRawData();
+                    if(data == null) continue;
+
+                    byte[] line = record(section.getKey(), data);
+                    long fingerprint = fingerprint(line);
+                    Long previous = fingerprints.get(section.getKey());
+                    if(previous != null && previous == fingerprint && section.getSegment() >= 0) {
+                        section.clearData();
+                        continue;
+                    }
+
+                    long start = append(line, true);
+                    written.add(new Pair<>(section, new long[]{active, start, start + line.length, fingerprint}));
+                }
+
+                appendStream.flush();
+                appender.getChannel().force(false);
+            } catch (IOException e) {
+                throw new FileException("Failed to append to the log segment!", e);
+            }
+
+            removed.removeAll(tombstones);
+
+            lock.writeLock().lock();
+            try {
+                for(Pair<FileSection, long[]> pair : written) {
+                    FileSection section = pair.getKey();
+                    long[] location = pair.getValue();
+
+                    FileSection current = get(section.getKey());
+                    if(current == null) {
+                        markDead((int) location[0], location[1], location[2]);
+                        continue;
+                    }
+                    if(current.getSegment() >= 0) markDead(current);
+
+                    current.setSegment((int) location[0]);
+                    current.setStart(location[1]);
+                    current.setEnd(location[2]);
+                    fingerprints.put(section.getKey(), location[3]);
+                    if(current == section) section.clearData();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private long append(byte[] line, boolean live) throws IOException {
+        if(activeLength > 0 && activeLength + line.length + 1 > segmentSize) {
+            rollSegment();
+        }
+
+        long start = activeLength;
+        appendStream.write(line);
+        appendStream.write('\n');
+        activeLength += line.length + 1;
+
+        synchronized (segments) {
+            long[] stats = segments.get(active);
+            stats[0] += line.length + 1;
+            if(live) stats[1] += line.length + 1;
+        }
+        return start;
+    }
+
+    private void rollSegment() throws IOException {
+        appendStream.flush();
+        appender.getChannel().force(false);
+        appendStream.close();
+
+        active++;
+        activeLength = 0;
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        File file = segmentFile(active);
+        appender = new FileOutputStream(file, true);
+        appendStream = new BufferedOutputStream(appender, JsonSectionScanner.BUFFER_SIZE);
+        activeLength = file.length();
+        synchronized (segments) {
+            segments.putIfAbsent(active, new long[]{activeLength, 0});
+        }
+    }
+
+    // Compaction
+
+    /***
+     * Merges every sealed segment into one, keeping only the
+     * records the index still points at. The merged segment
+     * takes the id of the newest sealed segment, so replaying
+     * the segments in order still ends on the latest records.
+     *
+     * The segments are picked and swapped while no save runs. A
+     * save can seal a segment before the index points at its
+     * records, so only segments sealed by a finished save are
+     * merged.
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            List<Integer> sealed;
+            int target;
+            List<Pair<String, long[]>> live = new ArrayList<>();
+            synchronized (appendLock) {
+                synchronized (segments) {
+                    sealed = new ArrayList<>(segments.headMap(active).keySet());
+                }
+                if(sealed.isEmpty()) return;
+
+                Set<Integer> sealedSet = new HashSet<>(sealed);
+                target = sealed.get(sealed.size() - 1);
+
+                lock.readLock().lock();
+                try {
+                    for(FileSection section : values()) {
+                        if(sealedSet.contains(section.getSegment())) {
+                            live.add(new Pair<>(section.getKey(), new long[]{section.getSegment(), section.getStart(), section.getEnd(), 0, 0}));
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            live.sort(Comparator.<Pair<String, long[]>>comparingLong(pair -> pair.getValue()[0]).thenComparingLong(pair -> pair.getValue()[1]));
+
+            File output = new File(folder, segmentName(target) + COMPACT_EXTENSION);
+            long length = 0;
+            try(FileOutputStream stream = new FileOutputStream(output);
+                 OutputStream buffered = new BufferedOutputStream(stream, JsonSectionScanner.BUFFER_SIZE)) {
+                for(Pair<String, long[]> pair : live) {
+                    long[] location = pair.getValue();
+                    byte[] line = read((int) location[0], location[1], location[2]);
+                    buffered.write(line);
+                    buffered.write('\n');
+                    location[3] = length;
+                    location[4] = length + line.length;
+                    length += line.length + 1;
+                }
+                buffered.flush();
+                stream.getChannel().force(false);
+            }
+
+            synchronized (appendLock) {
+                swapCompacted(sealed, target, live, output, length);
+            }
+
+            Logger.debug("Compacted " + sealed.size() + " log segments in " + folder + " into " + length + " bytes");
+        }
+    }
+
+    private void swapCompacted(List<Integer> sealed, int target, List<Pair<String, long[]>> live, File output, long length) throws IOException {
+        synchronized (segments) {
+            // The log was read again while the records were copied
+            if(!segments.keySet().containsAll(sealed)) {
+                Files.deleteIfExists(output.toPath());
+                return;
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            for(int id : sealed) {
+                FileChannel channel = readers.remove(id);
+                if(channel != null) channel.close();
+            }
+            Files.move(output.toPath(), segmentFile(target).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for(int id : sealed) {
+                if(id != target) Files.deleteIfExists(segmentFile(id).toPath());
+            }
+
+            long[] stats = new long[]{length, 0};
+            for(Pair<String, long[]> pair : live) {
+                long[] location = pair.getValue();
+                FileSection current = get(pair.getKey());
+                if(current != null && current.getSegment() == location[0] && current.getStart() == location[1]) {
+                    current.setSegment(target);
+                    current.setStart(location[3]);
+                    current.setEnd(location[4]);
+                    stats[1] += location[4] - location[3] + 1;
+                }
+            }
+
+            synchronized (segments) {
+                for(int id : sealed) segments.remove(id);
+                segments.put(target, stats);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactIfNeeded() {
+        long total = 0;
+        long live = 0;
+        synchronized (segments) {
+            for(long[] stats : segments.headMap(active).values()) {
+                total += stats[0];
+                live += stats[1];
+            }
+        }
+        if(total == 0 || (double) (total - live) / total < compactionRatio) return;
+
+        try {
+            compact();
+        } catch (Exception ex) {
+            Logger.error("Failed to compact the log segments in " + folder);
+            ex.printStackTrace();
+        }
+    }
+
+    private void startCompactor() {
+        if(compactor != null || compactionTime <= 0) return;
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LogLoader compactor (" + folder + ")");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, compactionTime, compactionTime, TimeUnit.SECONDS);
+    }
+
+    // Reading from the log
+
+    public void readFile() throws IOException {
+        if(!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create folder " + folder);
+        }
+
+        synchronized (appendLock) {
+            lock.writeLock().lock();
+            try {
+                closeSegments();
+                super.clear();
+                removed.clear();
+                fingerprints.clear();
+                synchronized (segments) {
+                    segments.clear();
+                }
+
+                File[] leftovers = folder.listFiles((dir, name) -> name.endsWith(EXTENSION + COMPACT_EXTENSION));
+                if(leftovers != null) {
+                    for(File leftover : leftovers) Files.deleteIfExists(leftover.toPath());
+                }
+
+                List<Integer> ids = new ArrayList<>();
+                File[] files = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+                if(files != null) {
+                    for(File file : files) {
+                        try {
+                            ids.add(Integer.parseInt(file.getName().substring(0, file.getName().length() - EXTENSION.length())));
+                        } catch (NumberFormatException ex) {
+                            Logger.warn("Ignoring unknown file " + file + " in log folder");
+                        }
+                    }
+                }
+                Collections.sort(ids);
+
+                for(int id : ids) {
+                    replaySegment(id);
+                }
+
+                active = ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+                openSegment();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        startCompactor();
+    }
+
+    private void replaySegment(int id) throws IOException {
+        File file = segmentFile(id);
+        long[] stats = new long[]{0, 0};
+        synchronized (segments) {
+            segments.put(id, stats);
+        }
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+        long position = 0;
+        long lineStart = 0;
+        try(InputStream stream = new FileInputStream(file)) {
+            byte[] buffer = new byte[JsonSectionScanner.BUFFER_SIZE];
+            int read;
+            while((read = stream.read(buffer)) != -1) {
+                int from = 0;
+                for(int i = 0; i < read; i++) {
+                    if(buffer[i] != '\n') continue;
+
+                    line.write(buffer, from, i - from);
+                    long lineEnd = position + i;
+                    replayRecord(id, line, lineStart, lineEnd, stats);
+                    line.reset();
+                    from = i + 1;
+                    lineStart = lineEnd + 1;
+                }
+                line.write(buffer, from, read - from);
+                position += read;
+            }
+        }
+
+        // A torn write at the end of the segment is cut off, so
+        // appending after it doesn't glue records together.
+        if(position > lineStart) {
+            Logger.warn("Truncating " + (position - lineStart) + " incomplete bytes at the end of " + file);
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(lineStart);
+            }
+        }
+        stats[0] = lineStart;
+    }
+
+    private void replayRecord(int id, ByteArrayOutputStream line, long start, long end, long[] stats) {
+        String key = null;
+        boolean tombstone = false;
+        try(JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(line.toByteArray()), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "key":
+                        key = reader.nextString();
+                        break;
+                    case "removed":
+                        tombstone = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+        } catch (Exception ex) {
+            Logger.warn("Skipping a corrupt record at position " + start + " of log segment " + id);
+            return;
+        }
+        if(key == null) return;
+
+        FileSection previous = super.remove(key);
+        if(previous != null) markDead(previous);
+        if(tombstone) return;
+
+        FileSection section = new FileSection(key, null, this);
+        section.setSegment(id);
+        section.setStart(start);
+        section.setEnd(end);
+        super.put(key, section);
+        stats[1] += end - start + 1;
+    }
+
+    public FileSection loadData(FileSection section) throws IOException {
+        lock.readLock().lock();
+        try {
+            if(section.getSegment() < 0) return section;
+
+            byte[] line = read(section.getSegment(), section.getStart(), section.getEnd());
+            fingerprints.put(section.getKey(), fingerprint(line));
+
+            JsonObject record = JsonParser.parseString(new String(line, StandardCharsets.UTF_8)).getAsJsonObject();
+            FileSection loaded = new FileSection(record.get("key").getAsString(), record.getAsJsonObject("data"), this);
+            loaded.setSegment(section.getSegment());
+            loaded.setStart(section.getStart());
+            loaded.setEnd(section.getEnd());
+            return loaded;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private byte[] read(int segment, long start, long end) throws IOException {
+        FileChannel channel = readers.get(segment);
+        if(channel == null) {
+            synchronized (readers) {
+                channel = readers.get(segment);
+                if(channel == null) {
+                    channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ);
+                    readers.put(segment, channel);
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        long position = start;
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) throw new EOFException("Log segment " + segment + " ended before position " + end);
+            position += read;
+        }
+        return buffer.array();
+    }
+
+    // Helpers
+
+    private void closeSegments() throws IOException {
+        if(appendStream != null) {
+            appendStream.close();
+            appendStream = null;
+            appender = null;
+        }
+        for(FileChannel channel : readers.values()) {
+            channel.close();
+        }
+        readers.clear();
+    }
+
+    private void markDead(FileSection section) {
+        markDead(section.getSegment(), section.getStart(), section.getEnd());
+    }
+
+    private void markDead(int segment, long start, long end) {
+        synchronized (segments) {
+            long[] stats = segments.get(segment);
+            if(stats != null) stats[1] -= end - start + 1;
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(folder, segmentName(id));
+    }
+
+    private static String segmentName(int id) {
+        return String.format("%08d", id) + EXTENSION;
+    }
+
+    private static byte[] record(String key, JsonObject data) {
+        JsonObject record = new JsonObject();
+        record.addProperty("key", key);
+        record.add("data", data);
+        return gson.toJson(record).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] tombstone(String key) {
+        JsonObject record = new JsonObject();
+        record.addProperty("key", key);
+        record.addProperty("removed", true);
+        return gson.toJson(record).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long fingerprint(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for(byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,122 @@
+package net.xilla.boot.storage.file.loader;
+
+import net.xilla.boot.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/***
+ * A read only memory mapping of a whole file. Files larger
+ * than a single mapping can hold are split into 1GB regions,
+ * reads that cross a region boundary are stitched together.
+ *
+ * The mapping is a snapshot of the file when it was created,
+ * a new one has to be made whenever the file is replaced.
+ * Close it before the file is deleted or replaced, a file that
+ * is still mapped can't be removed on Windows.
+ */
+public class MappedFile implements Closeable {
+
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] regions;
+
+    private final long length;
+
+    private volatile boolean closed = false;
+
+    public MappedFile(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.length = channel.size();
+            this.regions = new MappedByteBuffer[(int)((length + REGION_SIZE - 1) / REGION_SIZE)];
+            for(int i = 0; i < regions.length; i++) {
+                long offset = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, length - offset));
+            }
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public byte[] read(long start, long end) {
+        check(start, end);
+
+        byte[] bytes = new byte[(int)(end - start)];
+        int written = 0;
+        long position = start;
+        while(written < bytes.length) {
+            ByteBuffer buffer = regions[(int)(position / REGION_SIZE)].duplicate();
+            buffer.position((int)(position % REGION_SIZE));
+
+            int count = Math.min(bytes.length - written, buffer.remaining());
+            buffer.get(bytes, written, count);
+            written += count;
+            position += count;
+        }
+        return bytes;
+    }
+
+    /***
+     * Decodes the UTF-8 text between the two offsets. When the
+     * range sits inside one region it is decoded straight from
+     * the mapped bytes without an intermediate copy.
+     */
+    public String readString(long start, long end) {
+        check(start, end);
+
+        int region = (int)(start / REGION_SIZE);
+        if(start == end) return "";
+        if(region == (int)((end - 1) / REGION_SIZE)) {
+            ByteBuffer buffer = regions[region].duplicate();
+            buffer.limit((int)(end - region * REGION_SIZE));
+            buffer.position((int)(start - region * REGION_SIZE));
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        }
+        return new String(read(start, end), StandardCharsets.UTF_8);
+    }
+
+    /***
+     * Unmaps the regions right away instead of waiting for the
+     * garbage collector. Nothing may read from the mapping while
+     * or after it is closed.
+     */
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        for(MappedByteBuffer region : regions) {
+            unmap(region);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // The region is released once it is collected instead
+            Logger.debug("Failed to unmap a file region, leaving it to the garbage collector");
+        }
+    }
+
+    private void check(long start, long end) {
+        if(closed) throw new IllegalStateException("The mapped file is closed");
+        if(start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + "-" + end + " is outside of the mapped file (" + length + " bytes)");
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.xilla.boot.Logger;
+import net.xilla.boot.api.Pair;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/***
+ * The pack files of a folder loader. A pack holds many
+ * sections back to back in the same format as a JsonLoader
+ * file, with a SectionIndexFile next to it so it never has
+ * to be scanned. Packs can be block compressed, which is
+ * detected when they are read.
+ *
+ * Removed keys are kept in a tombstone file, each tombstone
+ * hides the key from every pack that existed when it was
+ * removed.
+ */
+public class PackFiles {
+
+    private static final Gson gson = new Gson();
+
+    private static final String EXTENSION = ".pack";
+
+    private static final byte[] SEPARATOR = ",\n".getBytes(StandardCharsets.UTF_8);
+
+    private final File folder;
+
+    private final File tombstoneFile;
+
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+
+    // The last block that was inflated, as {pack, block} and its content
+    private volatile Pair<long[], byte[]> lastBlock = null;
+
+    public PackFiles(File folder) {
+        this.folder = folder;
+        this.tombstoneFile = new File(folder, "removed");
+    }
+
+    public List<Integer> list() {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if(files == null) return ids;
+
+        for(File file : files) {
+            try {
+                ids.add(Integer.parseInt(file.getName().substring(0, file.getName().length() - EXTENSION.length())));
+            } catch (NumberFormatException ex) {
+                Logger.warn("Ignoring unknown file " + file + " in pack folder");
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    public List<FileSection> readIndex(int id, FileLoader loader) throws IOException {
+        File file = file(id);
+        List<FileSection> sections = SectionIndexFile.read(indexFile(id), file, false, loader);
+        if(sections == null) {
+            List<FileSection> scanned = new ArrayList<>();
+            boolean compressed = BlockFile.isCompressed(file);
+            try(InputStream stream = new BufferedInputStream(new FileInputStream(file), JsonSectionScanner.BUFFER_SIZE)) {
+                if(compressed) {
+                    BlockFile.scan(stream, (block, raw) -> new JsonSectionScanner((key, start, end) -> {
+                        FileSection section = new FileSection(key, null, loader);
+                        section.setBlock(block);
+                        section.setStart(start);
+                        section.setEnd(end);
+                        scanned.add(section);
+                    }).feed(raw, 0, raw.length));
+                } else {
+                    new JsonSectionScanner((key, start, end) -> {
+                        FileSection section = new FileSection(key, null, loader);
+                        section.setStart(start);
+                        section.setEnd(end);
+                        scanned.add(section);
+                    }).scan(stream);
+                }
+            }
+            sections = scanned;
+        }
+
+        for(FileSection section : sections) {
+            section.setSegment(id);
+        }
+        return sections;
+    }
+
+    /***
+     * Reads a packed section as it was written, inflating
+     * its block first when the pack is compressed.
+     */
+    public byte[] read(FileSection section) throws IOException {
+        int id = section.getSegment();
+        if(section.getBlock() < 0) {
+            return read(id, section.getStart(), section.getEnd());
+        }
+
+        Pair<long[], byte[]> cached = lastBlock;
+        byte[] raw;
+        if(cached != null && cached.getKey()[0] == id && cached.getKey()[1] == section.getBlock()) {
+            raw = cached.getValue();
+        } else {
+            raw = BlockFile.readBlock((start, end) -> read(id, start, end), section.getBlock());
+            lastBlock = new Pair<>(new long[] {id, section.getBlock()}, raw);
+        }
+        return Arrays.copyOfRange(raw, (int) section.getStart(), (int) section.getEnd());
+    }
+
+    private byte[] read(int id, long start, long end) throws IOException {
+        FileChannel channel = readers.get(id);
+        if(channel == null) {
+            synchronized (readers) {
+                channel = readers.get(id);
+                if(channel == null) {
+                    channel = FileChannel.open(file(id).toPath(), StandardOpenOption.READ);
+                    readers.put(id, channel);
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)(end - start));
+        long position = start;
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) throw new EOFException("Pack " + id + " ended before position " + end);
+            position += read;
+        }
+        return buffer.array();
+    }
+
+    public Writer create(int id, boolean compressed) throws IOException {
+        if(!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create folder " + folder);
+        }
+        return new Writer(id, compressed);
+    }
+
+    public void delete(int id) throws IOException {
+        Pair<long[], byte[]> cached = lastBlock;
+        if(cached != null && cached.getKey()[0] == id) lastBlock = null;
+
+        FileChannel channel = readers.remove(id);
+        if(channel != null) channel.close();
+        Files.deleteIfExists(file(id).toPath());
+        Files.deleteIfExists(indexFile(id).toPath());
+    }
+
+    public void close() throws IOException {
+        for(FileChannel channel : readers.values()) {
+            channel.close();
+        }
+        readers.clear();
+    }
+
+    // Tombstones
+
+    public Map<String, Integer> readTombstones() throws IOException {
+        Map<String, Integer> tombstones = new HashMap<>();
+        if(!tombstoneFile.exists()) return tombstones;
+
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tombstoneFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                try {
+                    JsonObject tombstone = JsonParser.parseString(line).getAsJsonObject();
+                    tombstones.merge(tombstone.get("key").getAsString(), tombstone.get("pack").getAsInt(), Math::max);
+                } catch (Exception ex) {
+                    Logger.warn("Skipping a corrupt tombstone in " + tombstoneFile);
+                }
+            }
+        }
+        return tombstones;
+    }
+
+    public synchronized void appendTombstone(String key, int pack) throws IOException {
+        if(!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create folder " + folder);
+        }
+        try(FileOutputStream stream = new FileOutputStream(tombstoneFile, true)) {
+            stream.write(tombstone(key, pack));
+            stream.getChannel().force(false);
+        }
+    }
+
+    public synchronized void writeTombstones(Map<String, Integer> tombstones) throws IOException {
+        if(tombstones.isEmpty()) {
+            Files.deleteIfExists(tombstoneFile.toPath());
+            return;
+        }
+
+        File tempFile = new File(tombstoneFile.getPath() + ".temp");
+        try(FileOutputStream stream = new FileOutputStream(tempFile);
+            OutputStream buffered = new BufferedOutputStream(stream)) {
+            for(Map.Entry<String, Integer> entry : tombstones.entrySet()) {
+                buffered.write(tombstone(entry.getKey(), entry.getValue()));
+            }
+            buffered.flush();
+            stream.getChannel().force(false);
+        }
+        Files.move(tempFile.toPath(), tombstoneFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] tombstone(String key, int pack) {
+        JsonObject tombstone = new JsonObject();
+        tombstone.addProperty("key", key);
+        tombstone.addProperty("pack", pack);
+        return (gson.toJson(tombstone) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private File file(int id) {
+        return new File(folder, String.format("%08d", id) + EXTENSION);
+    }
+
+    private File indexFile(int id) {
+        return new File(file(id).getPath() + ".index");
+    }
+
+    /***
+     * Writes a new pack to a temporary file, which only
+     * becomes visible once it is finished.
+     */
+    public class Writer implements Closeable {
+
+        private final int id;
+
+        private final File tempFile;
+
+        private final CRC32 checksum = new CRC32();
+
+        private final FileOutputStream fileStream;
+
+        private final OutputStream stream;
+
+        private final BlockFile.Writer blocks;
+
+        private final List<FileSection> sections = new ArrayList<>();
+
+        private long position = 0;
+
+        private boolean finished = false;
+
+        private Writer(int id, boolean compressed) throws IOException {
+            this.id = id;
+            this.tempFile = new File(file(id).getPath() + ".temp");
+            this.fileStream = new FileOutputStream(tempFile);
+            this.stream = new BufferedOutputStream(new CheckedOutputStream(fileStream, checksum), JsonSectionScanner.BUFFER_SIZE);
+            this.blocks = compressed ? new BlockFile.Writer(stream, BlockFile.DEFAULT_BLOCK_SIZE) : null;
+        }
+
+        public FileSection append(String key, byte[] section, FileLoader loader) throws IOException {
+            FileSection location = new FileSection(key, null, loader);
+            location.setSegment(id);
+
+            if(blocks != null) {
+                long[] block = blocks.append(section, SEPARATOR);
+                location.setBlock(block[0]);
+                location.setStart(block[1]);
+                location.setEnd(block[2]);
+            } else {
+                stream.write(section);
+                stream.write(SEPARATOR);
+                location.setStart(position);
+                location.setEnd(position + section.length);
+                position += section.length + SEPARATOR.length;
+            }
+
+            sections.add(location);
+            return location;
+        }
+
+        public int size() {
+            return sections.size();
+        }
+
+        public void finish() throws IOException {
+            if(blocks != null) blocks.finish();
+            stream.flush();
+            fileStream.getChannel().force(false);
+            stream.close();
+
+            File file = file(id);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+
+            try {
+                SectionIndexFile.write(indexFile(id), file, checksum.getValue(), sections);
+            } catch (IOException e) {
+                Logger.warn("Failed to write the index of pack " + file + ", it will be scanned on the next startup");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(finished) return;
+            try {
+                stream.close();
+                Files.deleteIfExists(tempFile.toPath());
+            } finally {
+                if(blocks != null) blocks.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,144 @@
+package net.xilla.boot.storage.file.loader;
+
+import net.xilla.boot.Logger;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/***
+ * A compact binary copy of a loader's index, kept next to
+ * the data file so it doesn't have to be scanned on startup.
+ *
+ * The index remembers the length, modification time and
+ * checksum of the data file it was written for, and is only
+ * used while the data file still matches it. The index file
+ * itself ends with a checksum of its own contents.
+ */
+public class SectionIndexFile {
+
+    private static final int MAGIC = 0x58494458;
+
+    private static final int VERSION = 2;
+
+    // Magic, version, data length, modification time, checksum and count
+    private static final int HEADER_SIZE = 36;
+
+    public static void write(File indexFile, File dataFile, long dataChecksum, Collection<FileSection> sections) throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".temp");
+
+        CRC32 checksum = new CRC32();
+        try(DataOutputStream stream = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), JsonSectionScanner.BUFFER_SIZE), checksum))) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeLong(dataFile.length());
+            stream.writeLong(dataFile.lastModified());
+            stream.writeLong(dataChecksum);
+            stream.writeInt(sections.size());
+
+            for(FileSection section : sections) {
+                byte[] key = section.getKey().getBytes(StandardCharsets.UTF_8);
+                stream.writeInt(key.length);
+                stream.write(key);
+                stream.writeInt(section.getSegment());
+                stream.writeLong(section.getBlock());
+                stream.writeLong(section.getStart());
+                stream.writeLong(section.getEnd());
+            }
+
+            stream.flush();
+            stream.writeLong(checksum.getValue());
+        }
+
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /***
+     * Reads the index back, if it still belongs to the data file.
+     *
+     * @param verify Also check the data file's checksum, which reads it once
+     * @return The sections, or null if the index is missing or out of date
+     */
+    public static List<FileSection> read(File indexFile, File dataFile, boolean verify, FileLoader loader) {
+        if(!indexFile.exists()) return null;
+
+        CRC32 checksum = new CRC32();
+        try(DataInputStream stream = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(indexFile), JsonSectionScanner.BUFFER_SIZE), checksum))) {
+            if(stream.readInt() != MAGIC) return null;
+            // Version 1 had no compressed blocks
+            int version = stream.readInt();
+            if(version != 1 && version != VERSION) return null;
+            if(stream.readLong() != dataFile.length() || stream.readLong() != dataFile.lastModified()) return null;
+
+            long dataChecksum = stream.readLong();
+            int count = stream.readInt();
+
+            // A corrupt count or key length has to fit in the rest of
+            // the file, before anything is allocated for it
+            int entrySize = version > 1 ? 32 : 24;
+            long remaining = indexFile.length() - HEADER_SIZE - 8;
+            if(count < 0 || count > remaining / entrySize) {
+                Logger.warn("Index file " + indexFile + " is corrupt, the data file will be scanned instead");
+                return null;
+            }
+
+            List<FileSection> sections = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                int keyLength = stream.readInt();
+                remaining -= entrySize;
+                if(keyLength < 0 || keyLength > remaining) {
+                    Logger.warn("Index file " + indexFile + " is corrupt, the data file will be scanned instead");
+                    return null;
+                }
+                remaining -= keyLength;
+
+                byte[] key = new byte[keyLength];
+                stream.readFully(key);
+
+                FileSection section = new FileSection(new String(key, StandardCharsets.UTF_8), null, loader);
+                section.setSegment(stream.readInt());
+                if(version > 1) section.setBlock(stream.readLong());
+                section.setStart(stream.readLong());
+                section.setEnd(stream.readLong());
+                sections.add(section);
+            }
+
+            long expected = checksum.getValue();
+            if(stream.readLong() != expected) {
+                Logger.warn("Index file " + indexFile + " is corrupt, the data file will be scanned instead");
+                return null;
+            }
+
+            if(verify && checksum(dataFile) != dataChecksum) {
+                Logger.warn("Index file " + indexFile + " doesn't match the data file, it will be scanned instead");
+                return null;
+            }
+            return sections;
+        } catch (IOException ex) {
+            Logger.warn("Failed to read index file " + indexFile + ", the data file will be scanned instead");
+            return null;
+        }
+    }
+
+    public static long checksum(File file) throws IOException {
+        CRC32 checksum = new CRC32();
+        try(InputStream stream = new FileInputStream(file)) {
+            byte[] buffer = new byte[JsonSectionScanner.BUFFER_SIZE];
+            int read;
+            while((read = stream.read(buffer)) != -1) {
+                checksum.update(buffer, 0, read);
+            }
+        }
+        return checksum.getValue();
+    }
+
+}
@@ -0,0 +1,125 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import net.xilla.boot.storage.file.FileSection;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/***
+ * Streams sections to a file as pretty printed json, the
+ * same text the loaders always wrote, without building the
+ * json as a string first.
+ *
+ * The bytes written so far are counted, so the position of
+ * every section is known without flushing the file.
+ */
+public class SectionWriter {
+
+    // Thread safe, only used to write the data of the sections
+    private static final Gson gson = new Gson();
+
+    private static final String INDENT = "  ";
+
+    private final OutputStream target;
+
+    private final CountingStream counter;
+
+    private final Writer writer;
+
+    public SectionWriter(OutputStream stream) {
+        this.target = stream;
+        this.counter = new CountingStream(stream);
+        this.writer = new OutputStreamWriter(counter, StandardCharsets.UTF_8);
+    }
+
+    public long getPosition() {
+        return counter.count;
+    }
+
+    /***
+     * Writes a section with its data.
+     *
+     * @return The start and end of the section
+     */
+    public long[] write(FileSection section) throws IOException {
+        return write(section.getKey(), section.getRawData());
+    }
+
+    public long[] write(String key, JsonObject data) throws IOException {
+        long start = counter.count;
+
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent(INDENT);
+        json.setHtmlSafe(true);
+        json.setSerializeNulls(false);
+        json.beginObject();
+        json.name("key").value(key);
+        if(data != null) {
+            json.name("data");
+            gson.toJson(data, json);
+        }
+        json.endObject();
+        // Moves the encoded text into the counter, the file isn't flushed
+        json.flush();
+
+        return new long[] {start, counter.count};
+    }
+
+    /***
+     * Copies bytes that are already encoded, like a section
+     * that is unchanged since it was read or a separator.
+     */
+    public void writeRaw(byte[] bytes) throws IOException {
+        writer.flush();
+        counter.write(bytes);
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+        target.flush();
+    }
+
+    /***
+     * Encodes a single section, for callers that need
+     * its bytes instead of writing it to a stream.
+     */
+    public static byte[] toBytes(String key, JsonObject data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        new SectionWriter(bytes).write(key, data);
+        return bytes.toByteArray();
+    }
+
+    /***
+     * Counts the bytes passing through. Flushes are not passed
+     * on, they only happen to move text out of the encoder.
+     */
+    private static class CountingStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        private CountingStream(OutputStream stream) {
+            super(stream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+    }
+
+}
@@ -0,0 +1,349 @@
+package net.xilla.boot.storage.file.loader;
+
+import lombok.Getter;
+import net.xilla.boot.Logger;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+import net.xilla.boot.storage.manager.StorageExecutor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/***
+ * Spreads the sections over a number of json files by the
+ * hash of their key. Every shard is a JsonLoader of its own,
+ * the shards are saved and read in parallel so a big manager
+ * isn't limited to a single writing thread.
+ *
+ * The shard count is kept in a file next to the shards. When
+ * it changes, or a plain json file is found, the sections are
+ * moved to the new shards on the next read.
+ */
+public class ShardedJsonLoader extends AbstractMap<String, FileSection> implements FileLoader {
+
+    private static final String MIGRATING = ".migrating";
+
+    private static volatile Executor shardExecutor = null;
+
+    private final String filePath;
+
+    private final File countFile;
+
+    @Getter
+    private final int shards;
+
+    @Getter
+    private final boolean mapped;
+
+    @Getter
+    private final boolean compressed;
+
+    private final JsonLoader[] loaders;
+
+    public ShardedJsonLoader(String filePath, int shards) {
+        this(filePath, shards, false, false);
+    }
+
+    public ShardedJsonLoader(String filePath, int shards, boolean mapped, boolean compressed) {
+        if(shards < 1) throw new IllegalArgumentException("A sharded loader needs at least one shard");
+
+        this.filePath = filePath;
+        this.countFile = new File(filePath + ".shards");
+        this.shards = shards;
+        this.mapped = mapped;
+        this.compressed = compressed;
+        this.loaders = new JsonLoader[shards];
+        for(int i = 0; i < shards; i++) {
+            loaders[i] = new JsonLoader(shardPath(i, shards), mapped, compressed);
+        }
+    }
+
+    /***
+     * Whether a sharded loader already wrote to the path. Only a
+     * sharded loader moves those files back into a single one,
+     * so it is needed even when a single shard is asked for.
+     */
+    public static boolean isSharded(String filePath) {
+        return new File(filePath + ".shards").exists();
+    }
+
+    /***
+     * The executor the shards are saved and read on. It is
+     * separate from the save executor, whose threads wait
+     * on the shards while a manager saves.
+     */
+    private static Executor getShardExecutor() {
+        if(shardExecutor == null) {
+            synchronized (ShardedJsonLoader.class) {
+                if(shardExecutor == null) {
+                    shardExecutor = StorageExecutor.create("Storage shard", Runtime.getRuntime().availableProcessors(), 256);
+                }
+            }
+        }
+        return shardExecutor;
+    }
+
+    public JsonLoader getShard(String key) {
+        return loaders[Math.floorMod(key.hashCode(), shards)];
+    }
+
+    // FileLoader
+
+    public void put(FileSection section) {
+        getShard(section.getKey()).put(section);
+    }
+
+    @Override
+    public FileSection put(String key, FileSection section) {
+        return getShard(key).put(key, section);
+    }
+
+    @Override
+    public void remove(String key) {
+        getShard(key).remove(key);
+    }
+
+    @Override
+    public FileSection remove(Object key) {
+        return getShard(key.toString()).remove(key);
+    }
+
+    @Override
+    public void unloadData(String sectionKey) {
+        getShard(sectionKey).unloadData(sectionKey);
+    }
+
+    public FileSection loadData(FileSection section) throws IOException {
+        return getShard(section.getKey()).loadData(section);
+    }
+
+    @Override
+    public Map<String, FileSection> loadAllData(Collection<FileSection> sections) throws IOException {
+        Map<JsonLoader, List<FileSection>> grouped = new HashMap<>();
+        for(FileSection section : sections) {
+            grouped.computeIfAbsent(getShard(section.getKey()), loader -> new ArrayList<>()).add(section);
+        }
+
+        Map<String, FileSection> loaded = new HashMap<>(sections.size() * 4 / 3 + 1);
+        for(Map.Entry<JsonLoader, List<FileSection>> group : grouped.entrySet()) {
+            loaded.putAll(group.getKey().loadAllData(group.getValue()));
+        }
+        return loaded;
+    }
+
+    public void saveSections() throws FileException {
+        try {
+            forEachShard(JsonLoader::saveSections);
+        } catch (IOException | FileException e) {
+            throw new FileException("Failed to save the shards of " + filePath, e);
+        }
+    }
+
+    public void readFile() throws IOException {
+        int previous = readShardCount();
+        if(previous != shards) {
+            migrate(previous);
+        }
+
+        try {
+            forEachShard(JsonLoader::readFile);
+        } catch (FileException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Map
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(JsonLoader loader : loaders) {
+            size += loader.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getShard(key.toString()).containsKey(key);
+    }
+
+    @Override
+    public FileSection get(Object key) {
+        return getShard(key.toString()).get(key);
+    }
+
+    @Override
+    public void clear() {
+        for(JsonLoader loader : loaders) {
+            loader.clear();
+        }
+    }
+
+    @Override
+    public Set<Entry<String, FileSection>> entrySet() {
+        return new AbstractSet<Entry<String, FileSection>>() {
+            @Override
+            public Iterator<Entry<String, FileSection>> iterator() {
+                return new Iterator<Entry<String, FileSection>>() {
+                    private int shard = 0;
+                    private Iterator<Entry<String, FileSection>> current = loaders[0].entrySet().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while(!current.hasNext() && shard < shards - 1) {
+                            current = loaders[++shard].entrySet().iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, FileSection> next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        return current.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        current.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ShardedJsonLoader.this.size();
+            }
+        };
+    }
+
+    // Shards
+
+    private interface ShardTask {
+
+        void run(JsonLoader loader) throws IOException, FileException;
+
+    }
+
+    /***
+     * Runs the task on every shard in parallel and waits
+     * for all of them, the first failure is rethrown.
+     */
+    private void forEachShard(ShardTask task) throws IOException, FileException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(shards);
+        for(JsonLoader loader : loaders) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    task.run(loader);
+                } catch (IOException | FileException e) {
+                    throw new CompletionException(e);
+                }
+            }, getShardExecutor()));
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof FileException) throw (FileException) cause;
+            throw e;
+        }
+    }
+
+    /***
+     * Moves the sections stored with the previous shard count
+     * to the current shards. The old files are renamed first,
+     * and only deleted once the new shards and their count are
+     * written, so an interrupted move is simply done again.
+     */
+    private void migrate(int previous) throws IOException {
+        if(previous == 0) {
+            writeShardCount();
+            return;
+        }
+
+        Logger.info("Moving " + filePath + " from " + previous + " to " + shards + " shards");
+        List<File> old = new ArrayList<>();
+        for(int i = 0; i < previous; i++) {
+            File file = new File(shardPath(i, previous));
+            File moving = new File(file.getPath() + MIGRATING);
+            if(file.exists() && !moving.exists()) {
+                Files.move(file.toPath(), moving.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(new File(file.getPath() + ".index").toPath());
+            }
+            if(moving.exists()) old.add(moving);
+        }
+
+        int moved = 0;
+        for(File file : old) {
+            JsonLoader loader = new JsonLoader(file.getPath(), false, compressed);
+            loader.setUseIndexFile(false);
+            loader.readFile();
+            for(FileSection section : loader.values()) {
+                put(new FileSection(section.getKey(), section.getData(), this));
+                moved++;
+            }
+        }
+        try {
+            saveSections();
+        } catch (FileException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        writeShardCount();
+
+        for(File file : old) {
+            Files.deleteIfExists(file.toPath());
+        }
+        clear();
+        Logger.info("Moved " + moved + " sections to the new shards of " + filePath);
+    }
+
+    /***
+     * The shard count the files were written with, 1 for
+     * a plain json file and 0 when nothing was written yet.
+     */
+    private int readShardCount() throws IOException {
+        if(countFile.exists()) {
+            String count = new String(Files.readAllBytes(countFile.toPath()), StandardCharsets.UTF_8).trim();
+            try {
+                return Integer.parseInt(count);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid shard count " + count + " in " + countFile);
+            }
+        }
+        return new File(filePath).exists() ? 1 : 0;
+    }
+
+    private void writeShardCount() throws IOException {
+        File parent = countFile.getAbsoluteFile().getParentFile();
+        if(parent != null) parent.mkdirs();
+
+        File temp = new File(countFile.getPath() + ".temp");
+        try(FileOutputStream stream = new FileOutputStream(temp)) {
+            stream.write(String.valueOf(shards).getBytes(StandardCharsets.UTF_8));
+            stream.getChannel().force(false);
+        }
+        Files.move(temp.toPath(), countFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /***
+     * A single shard is the plain json file, more shards
+     * put their number in front of the extension.
+     */
+    private String shardPath(int shard, int count) {
+        if(count <= 1) return filePath;
+
+        int dot = filePath.lastIndexOf('.');
+        int slash = Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf(File.separatorChar));
+        if(dot <= slash) return filePath + "." + shard;
+        return filePath.substring(0, dot) + "." + shard + filePath.substring(dot);
+    }
+
+}
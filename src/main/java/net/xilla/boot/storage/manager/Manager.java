@@ -1,5 +1,6 @@
 package net.xilla.boot.storage.manager;
 
+import com.google.gson.JsonObject;
 import lombok.Getter;
 import lombok.Setter;
 import net.xilla.boot.Logger;
@@ -11,8 +12,15 @@ import net.xilla.boot.storage.file.FileSection;
 import net.xilla.boot.storage.file.loader.CacheLoader;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Manager<Value> implements Map<String, Value> {
 
@@ -26,6 +34,16 @@ public class Manager<Value> implements Map<String, Value> {
 
     private final List<ManagerCache<Value>> cacheList = new Vector<>();
 
+    // Keys that were put, removed or taken mutably since the last save
+    private final Set<String> changedKeys = ConcurrentHashMap.newKeySet();
+
+    // Every key of the manager in order. With an ordered file loader
+    // only the loaded keys, as it may not have them yet.
+    private final ConcurrentSkipListSet<String> sortedKeys = new ConcurrentSkipListSet<>();
+
+    // Values of the @Indexed fields, null without any
+    private final ManagerIndex fieldIndex;
+
     // Variables
 
     private FileLoader storage = new CacheLoader();
@@ -43,11 +61,98 @@ public class Manager<Value> implements Map<String, Value> {
     @Setter @Getter private int loadingThreads = 1;
     @Setter @Getter private int savingThreads = 1;
 
-    private long saving = -1;
+    /***
+     * When enabled, saves only serialize the objects that changed
+     * since the last save, and a save without changes is skipped.
+     * An object counts as changed when it was put or removed, or
+     * taken with getMutable() or flagged with markDirty(). Objects
+     * edited in place after a plain get() are not picked up.
+     *
+     * What reaches the disk depends on the file loader. LogLoader
+     * and BTreeLoader only write the changed sections, and
+     * JsonFolderLoader only the changed files. JsonLoader,
+     * ShardedJsonLoader and BinaryLoader still rewrite their whole
+     * file on every save with a change. The unchanged sections are
+     * copied without being parsed, but the bytes written grow with
+     * the stored data and not with the changes.
+     */
+    @Setter @Getter private boolean dirtyTracking = false;
+
+    /***
+     * Optional write-ahead journal. Puts and removes are journaled
+     * as they happen and replayed by loadStorage(), so changes made
+     * since the last save survive a crash.
+     */
+    @Setter @Getter private ManagerJournal journal = null;
+
+    /***
+     * When enabled, a save writes the objects as they were when it
+     * started. Writers are only held off while the object references
+     * are captured, and an object taken with getMutable() during the
+     * save is written before it is handed out. Objects edited in place
+     * after a plain get() are not protected.
+     */
+    @Setter @Getter private boolean snapshotSaves = false;
+
+    // Bounds the loaded objects once a maximum size, weight or budget is set
+    private volatile TinyLfuPolicy evictionPolicy = null;
+
+    private volatile long maximumWeight = 0;
+
+    // Shared with other managers, see StorageBudget
+    private volatile StorageBudget budget = null;
+
+    // Evicted changes handed to the file loader since the last save
+    private final AtomicInteger writtenBack = new AtomicInteger();
+
+    // Changed keys the running save took, their data isn't on disk yet
+    private volatile Set<String> savingKeys = Collections.emptySet();
+
+    // Objects being loaded, so threads missing the same key wait on a single load
+    private final ConcurrentHashMap<String, CompletableFuture<Value>> loading = new ConcurrentHashMap<>();
+
+    // Idle timers of loaded objects and expiry timers of objects put with a ttl
+    private final TimerWheel timers = new TimerWheel(System.currentTimeMillis());
+
+    private final ConcurrentHashMap<String, Long> expiresAt = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> ticker = null;
+
+    private ScheduledFuture<?> autoSaver = null;
+
+    private volatile long lastCleanupSave = System.currentTimeMillis();
+
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    private volatile ManagerSnapshot<Value> snapshot = null;
+
+    /***
+     * Runs the saves of this manager, the shared storage
+     * executor unless one is set.
+     */
+    @Setter @Getter private Executor saveExecutor = StorageExecutor.getSaveExecutor();
+
+    /***
+     * Loads the objects missed by getAsync() and getAllAsync(),
+     * the shared storage read executor unless one is set.
+     */
+    @Setter @Getter private Executor readExecutor = StorageExecutor.getReadExecutor();
+
+    // Milliseconds before a save the save executor rejected is handed to it again
+    private static final long SAVE_RETRY_DELAY = 100;
+
+    private final Object saveLock = new Object();
+
+    // The save that is running, and the one queued behind it
+    private CompletableFuture<Void> savingFuture = null;
+    private CompletableFuture<Void> pendingFuture = null;
 
     public Manager(Class<Value> clazz) {
         this.clazz = clazz;
         this.name = clazz.getName();
+
+        List<String> indexedFields = ObjectProcessor.getIndexedFields(clazz);
+        this.fieldIndex = indexedFields.isEmpty() ? null : new ManagerIndex(indexedFields);
     }
 
     public Manager(Class<Value> clazz, FileLoader loader) {
@@ -63,95 +168,378 @@ public class Manager<Value> implements Map<String, Value> {
 
     // Manager Functions
 
+    /***
+     * Saves the manager and waits for it to finish.
+     */
     public void save() {
-        if(saving != -1)
-            throw new RuntimeException("The manager (" + getName() + ") is already saving, this attempt will be ignored. Time spent: " + (System.currentTimeMillis() - saving) + "s.");
+        try {
+            saveAsync().join();
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /***
+     * Saves the manager on the save executor. A save requested
+     * while another one runs is queued behind it, and every
+     * request made in the meantime shares that queued save, as
+     * it picks up all of their changes.
+     *
+     * @return Completes once a save started after this call is done
+     */
+    public CompletableFuture<Void> saveAsync() {
+        CompletableFuture<Void> future;
+        synchronized (saveLock) {
+            if(pendingFuture != null) return pendingFuture;
+
+            future = new CompletableFuture<>();
+            if(savingFuture != null) {
+                pendingFuture = future;
+                return future;
+            }
+            savingFuture = future;
+        }
+        startSave(future);
+        return future;
+    }
 
-        saving = System.currentTimeMillis();
-        loadToFileLoader();
+    private void startSave(CompletableFuture<Void> future) {
+        try {
+            saveExecutor.execute(() -> runSave(future));
+        } catch (RejectedExecutionException e) {
+            if(saveExecutor instanceof ExecutorService && ((ExecutorService) saveExecutor).isShutdown()) {
+                finishSave(future, e);
+                return;
+            }
+            // The executor is busy, the save stays the running one so new requests
+            // keep coalescing behind it, and it's handed over again shortly
+            StorageExecutor.getScheduler().schedule(() -> startSave(future), SAVE_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runSave(CompletableFuture<Void> future) {
+        Throwable failure = null;
+        try {
+            writeSave();
+        } catch (Throwable throwable) {
+            failure = throwable;
+        }
+        finishSave(future, failure);
+    }
+
+    private void finishSave(CompletableFuture<Void> future, Throwable failure) {
+        CompletableFuture<Void> next;
+        synchronized (saveLock) {
+            next = pendingFuture;
+            pendingFuture = null;
+            savingFuture = next;
+        }
+        if(next != null) startSave(next);
+
+        if(failure == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    private void writeSave() throws FileLoader.FileException {
+        writtenBack.set(0);
+        // Changes journaled from here on may miss this save, so they go to a new segment
+        int sealed = rotateJournal();
+        List<String> changed = loadToFileLoader();
+        if(dirtyTracking && changed.isEmpty()) {
+            if(sealed > 0) journal.truncate(sealed);
+            return;
+        }
         try {
             storage.saveSections();
+            if(sealed > 0) journal.truncate(sealed);
         } catch (FileLoader.FileException e) {
-            e.printStackTrace();
+            // The changes are still pending, try them again next save
+            changedKeys.addAll(changed);
+            throw e;
+        } finally {
+            savingKeys = Collections.emptySet();
         }
-        saving = -1;
     }
 
-    private void loadToFileLoader() {
-        ExecutorService executor = Executors.newFixedThreadPool(savingThreads);
-        for(String key : loadedObjects.keySet()) {
-            executor.execute(() -> {
-                Value obj = loadedObjects.get(key);
-                try {
-                    storage.put(key, new FileSection(key, ObjectProcessor.toJson(obj, clazz), storage));
-                } catch (ProcessorException e) {
-                    Logger.error("Failed to load object " + key);
-                    throw new RuntimeException(e);
+    /***
+     * Hands the loaded objects to the file loader. With dirty tracking
+     * only the changed keys are serialized, otherwise every loaded
+     * object is. Either way the changed keys are taken and returned,
+     * so a failed save can put them back.
+     */
+    private List<String> loadToFileLoader() {
+        List<String> changed = new ArrayList<>();
+        Collection<String> keys;
+        ManagerSnapshot<Value> captured = null;
+
+        // Writers wait while a snapshot is captured, so it shows a single moment
+        boolean snapshotting = snapshotSaves;
+        if(snapshotting) snapshotLock.writeLock().lock();
+        try {
+            Set<String> saving = ConcurrentHashMap.newKeySet();
+            savingKeys = saving;
+            for(Iterator<String> iterator = changedKeys.iterator(); iterator.hasNext(); ) {
+                String key = iterator.next();
+                // Added before the key leaves the changed keys, so it's always in one of them
+                saving.add(key);
+                changed.add(key);
+                iterator.remove();
+            }
+            keys = changed;
+            if(!dirtyTracking) {
+                // Every loaded object is written, evictions must not unload them before the save ends
+                keys = new ArrayList<>(loadedObjects.keySet());
+                saving.addAll(keys);
+            }
+            if(snapshotting) {
+                captured = new ManagerSnapshot<>(clazz, storage, loadedObjects, keys);
+                snapshot = captured;
+                keys = captured.keys();
+            }
+        } finally {
+            if(snapshotting) snapshotLock.writeLock().unlock();
+        }
+
+        Consumer<String> writer = captured != null ? captured::write : this::serialize;
+        try {
+            // A single saving thread serializes right here on the save thread
+            if(savingThreads <= 1) {
+                for(String key : keys) {
+                    writer.accept(key);
                 }
-            });
+                return changed;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(savingThreads);
+            for(String key : keys) {
+                executor.execute(() -> writer.accept(key));
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.DAYS);
+            } catch (InterruptedException interruptedException) {
+                interruptedException.printStackTrace();
+            }
+            return changed;
+        } finally {
+            snapshot = null;
+        }
+    }
+
+    private void serialize(String key) {
+        Value obj = loadedObjects.get(key);
+        if(obj == null) return;
+        try {
+            JsonObject json = ObjectProcessor.toJson(obj, clazz);
+            // Catches objects that were edited in place since they were indexed
+            if(fieldIndex != null && loadedObjects.containsKey(key)) fieldIndex.update(key, json);
+            storage.put(key, new FileSection(key, json, storage));
+        } catch (ProcessorException e) {
+            Logger.error("Failed to load object " + key);
+            e.printStackTrace();
+        }
+    }
+
+    /***
+     * Flags an object as changed so the next save writes it.
+     * Call it after editing the object when using a journal,
+     * so the edited state is what gets journaled.
+     *
+     * @param key Key of the object
+     */
+    public void markDirty(String key) {
+        changedKeys.add(key);
+        if(journal == null && fieldIndex == null) return;
+
+        Value value = loadedObjects.get(key);
+        if(value == null) return;
+        if(journal != null) journalPut(key, value);
+        if(fieldIndex != null) fieldIndex.update(key, ObjectProcessor.pullIndexedFields(value, clazz));
+    }
+
+    private int rotateJournal() {
+        if(journal == null) return -1;
+        try {
+            return journal.rotate();
+        } catch (IOException e) {
+            Logger.error("Failed to rotate the journal of " + getName());
+            e.printStackTrace();
+            return -1;
         }
-        executor.shutdown();
+    }
+
+    private void journalPut(String key, Value value) {
         try {
-            executor.awaitTermination(1, TimeUnit.DAYS);
-        } catch (InterruptedException interruptedException) {
-            interruptedException.printStackTrace();
+            journal.append(key, ObjectProcessor.toJson(value, clazz));
+        } catch (ProcessorException e) {
+            Logger.error("Failed to journal object " + key);
+            e.printStackTrace();
+        }
+    }
+
+    private void replayJournal(String key, JsonObject data) {
+        changedKeys.add(key);
+        if(data == null) {
+            storage.remove(key);
+            loadedObjects.remove(key);
+            forget(key);
+            sortedKeys.remove(key);
+            if(fieldIndex != null) fieldIndex.remove(key);
+            return;
+        }
+        try {
+            loadedObjects.put(key, ObjectProcessor.toObject(data, clazz));
+            sortedKeys.add(key);
+            if(fieldIndex != null) fieldIndex.update(key, data);
+            touch(key, System.currentTimeMillis());
+            admit(key);
+        } catch (ProcessorException e) {
+            Logger.error("Failed to replay journaled object " + key);
+            e.printStackTrace();
         }
     }
 
     public void startWorkers() {
         if(autoSave) {
             Logger.debug("Starting auto save for " + getName());
-            new Thread(() -> {
-                while (autoSave) {
-                    long start = System.currentTimeMillis();
-                    Logger.debug("Auto saving manager " + getName());
-                    save();
-                    try {
-                        long time = (autoSaveTime * 1000L) - (System.currentTimeMillis() - start);
-                        if(time <= 0)
-                            Logger.debug("Manager " + getName() + " is taking longer then the autosave period to save!");
-                        else
-                            Thread.sleep(time);
-                    } catch (InterruptedException ignored) {
-                    }
+            synchronized (timers) {
+                if(autoSaver == null) {
+                    autoSaver = StorageExecutor.getScheduler().scheduleAtFixedRate(() -> {
+                        if(!autoSave) return;
+                        Logger.debug("Auto saving manager " + getName());
+                        saveAsync();
+                    }, autoSaveTime, autoSaveTime, TimeUnit.SECONDS);
                 }
-            }).start();
+            }
         }
         if(autoCleanup) {
             Logger.debug("Starting auto cleanup for " + getName());
-            new Thread(() -> {
-                while (autoCleanup) {
-                    // Saving before cleaning up
-                    long start = System.currentTimeMillis();
-                    Logger.debug("Auto cleaning up manager " + getName());
-                    save();
-
-                    for (String key : loadedObjects.keySet()) {
-                        long time = lastAccessed.get(key);
-                        if (System.currentTimeMillis() - time > cleanupTime * 1000L) {
-                            unloadObject(key);
-                        }
-                    }
-                    try {
-                        long time = (autoCleanupTime * 1000L) - (System.currentTimeMillis() - start);
-                        if(time <= 0)
-                            Logger.debug("Manager " + getName() + " is taking longer then the cleanup period to cleanup!");
-                        else
-                            Thread.sleep(time);
-                    } catch (InterruptedException ignored) {
-                    }
+            // Objects loaded before now haven't got an idle timer yet
+            long time = System.currentTimeMillis();
+            for(String key : loadedObjects.keySet()) {
+                touch(key, time);
+            }
+            startTicker();
+        }
+    }
+
+    // Expiry
+
+    /***
+     * Puts an object that is removed once the time to live
+     * passed. The expiry time is only kept in memory, the
+     * object stays once the program restarts.
+     */
+    public Value put(String key, Value value, Duration ttl) {
+        long deadline = System.currentTimeMillis() + ttl.toMillis();
+        Value previous = put(key, value);
+        expiresAt.put(key, deadline);
+        timers.schedule(key, deadline, true);
+        startTicker();
+        return previous;
+    }
+
+    private void startTicker() {
+        synchronized (timers) {
+            if(ticker != null) return;
+            ticker = StorageExecutor.getScheduler().scheduleAtFixedRate(this::expire, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /***
+     * Records a use of a loaded object. The idle timer is only
+     * set when the object has none, a timer firing for an object
+     * that was used since is set again from the last use.
+     */
+    private void touch(String key, long time) {
+        lastAccessed.put(key, time);
+        if(autoCleanup && !expiresAt.containsKey(key)) {
+            timers.scheduleIfAbsent(key, time + cleanupTime * 1000L);
+        }
+    }
+
+    private boolean isExpired(Object key) {
+        Long deadline = expiresAt.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    /***
+     * Fires the timers that are due. Only the objects whose
+     * timer fired are looked at, so the cost follows the
+     * expired objects and not the size of the manager.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        boolean wroteBack = false;
+        try {
+            for(TimerWheel.Timer timer : timers.advance(now)) {
+                String key = timer.getKey();
+                if(timer.isRemoval()) {
+                    if(isExpired(key)) remove(key);
+                    continue;
+                }
+                if(!autoCleanup) continue;
+
+                // Used again since the timer was set
+                Long accessed = lastAccessed.get(key);
+                if(accessed != null && now - accessed < cleanupTime * 1000L) {
+                    timers.scheduleIfAbsent(key, accessed + cleanupTime * 1000L);
+                    continue;
                 }
-            }).start();
+
+                TinyLfuPolicy policy = evictionPolicy;
+                if(policy != null) policy.remove(key);
+                wroteBack |= release(key);
+            }
+        } catch (Exception ex) {
+            Logger.error("Failed to expire objects of " + getName());
+            ex.printStackTrace();
+        }
+
+        if(wroteBack && now - lastCleanupSave >= autoCleanupTime * 1000L) {
+            lastCleanupSave = now;
+            saveAsync();
         }
     }
 
     public void loadStorage() {
-        storage.clear();
+        changedKeys.clear();
+        storage.clearIndex();
         try {
             storage.readFile();
+            if(journal != null) journal.replay(this::replayJournal);
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        sortedKeys.clear();
+        if(!storage.isOrdered()) sortedKeys.addAll(storage.keySet());
+        sortedKeys.addAll(loadedObjects.keySet());
+        if(fieldIndex != null) rebuildIndex();
+    }
+
+    /***
+     * Indexes every stored object from its json, without
+     * creating the objects or keeping their data loaded.
+     */
+    private void rebuildIndex() {
+        fieldIndex.clear();
+        for(FileSection section : storage.values()) {
+            if(loadedObjects.containsKey(section.getKey())) continue;
+            try {
+                FileSection loaded = section.getRawData() != null ? section : storage.loadData(section);
+                if(loaded != null && loaded.getRawData() != null) fieldIndex.update(section.getKey(), loaded.getRawData());
+            } catch (IOException e) {
+                Logger.error("Failed to index object " + section.getKey());
+                e.printStackTrace();
+            }
+        }
+        for(Map.Entry<String, Value> entry : loadedObjects.entrySet()) {
+            fieldIndex.update(entry.getKey(), ObjectProcessor.pullIndexedFields(entry.getValue(), clazz));
+        }
     }
 
     public void loadSingle(String key) {
@@ -167,15 +555,19 @@ public class Manager<Value> implements Map<String, Value> {
             throw new RuntimeException("FAILED TO LOAD DATA FOR " + key);
         }
         loadedObjects.put(key, obj);
+        admit(key);
     }
 
     public void initialLoad() {
-        if(autoCleanup) return;
+        // Bounded managers load their objects as they are used
+        if(autoCleanup || evictionPolicy != null) return;
         ExecutorService executor = Executors.newFixedThreadPool(loadingThreads);
         storage.forEach((key, section) ->
             executor.execute(() -> {
+                    // Replayed journal changes are newer than the stored copy
+                    if(changedKeys.contains(key)) return;
                     loadedObjects.put(key, loadObject(section));
-                    lastAccessed.put(key, System.currentTimeMillis());
+                    touch(key, System.currentTimeMillis());
                 }
             )
         );
@@ -186,7 +578,8 @@ public class Manager<Value> implements Map<String, Value> {
         storage.forEach((key, section) ->
             executor.execute(() -> {
                         loadedObjects.put(key, loadObject(section));
-                        lastAccessed.put(key, System.currentTimeMillis());
+                        touch(key, System.currentTimeMillis());
+                        admit(key);
                     }
             )
         );
@@ -213,8 +606,218 @@ public class Manager<Value> implements Map<String, Value> {
 
     public void unloadObject(String key) {
         loadedObjects.remove(key);
-        lastAccessed.remove(key);
+        forget(key);
         storage.unloadData(key);
+        if(evictionPolicy != null) evictionPolicy.remove(key);
+    }
+
+    // Eviction
+
+    /***
+     * Bounds the number of loaded objects. Objects are kept or
+     * evicted by how often and how recently they were used, as
+     * they are loaded and put. Changed objects are handed to the
+     * file loader before they are dropped, and a save is started
+     * once enough of them are waiting.
+     *
+     * An object still being edited when it is evicted loses the
+     * edits made after that, use a size that comfortably holds
+     * the objects in use.
+     *
+     * @param maximumSize Most objects to keep loaded, 0 for no limit
+     */
+    public void setMaximumSize(int maximumSize) {
+        if(maximumSize > 0 && storage instanceof CacheLoader) {
+            // Unloading from a cache loader deletes the object
+            Logger.warn("Manager " + getName() + " keeps everything in ram, ignoring its maximum size");
+            return;
+        }
+        maximumWeight = 0;
+        installPolicy(maximumSize > 0 ? new TinyLfuPolicy(maximumSize) : null);
+    }
+
+    public int getMaximumSize() {
+        TinyLfuPolicy policy = evictionPolicy;
+        return policy == null || policy.isWeighted() ? 0 : (int) policy.getMaximumWeight();
+    }
+
+    /***
+     * Bounds the estimated size of the loaded objects, for objects
+     * whose sizes differ too much to bound them by count. The size
+     * of an object is estimated when it is loaded or put, so growing
+     * it in place isn't noticed until it is put again.
+     *
+     * @param maximumWeight Most bytes to keep loaded, 0 for no limit
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        if(maximumWeight > 0 && storage instanceof CacheLoader) {
+            Logger.warn("Manager " + getName() + " keeps everything in ram, ignoring its maximum weight");
+            return;
+        }
+        this.maximumWeight = Math.max(0, maximumWeight);
+        StorageBudget current = budget;
+        if(maximumWeight > 0) {
+            installPolicy(weightedPolicy(maximumWeight));
+        } else {
+            installPolicy(current != null ? weightedPolicy(current.getMaximumBytes()) : null);
+        }
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /***
+     * @return Estimated bytes of the loaded objects, 0 when they aren't weighed
+     */
+    public long getLoadedWeight() {
+        TinyLfuPolicy policy = evictionPolicy;
+        return policy == null || !policy.isWeighted() ? 0 : policy.getWeight();
+    }
+
+    /***
+     * Joins or leaves a budget shared with other managers.
+     *
+     * @return Whether the manager can take part
+     */
+    boolean setBudget(StorageBudget budget) {
+        if(budget != null && getMaximumSize() > 0) {
+            Logger.warn("Manager " + getName() + " is bounded by its number of objects, it isn't part of the storage budget");
+            return false;
+        }
+        if(budget != null && storage instanceof CacheLoader) {
+            Logger.warn("Manager " + getName() + " keeps everything in ram, it isn't part of the storage budget");
+            return false;
+        }
+        this.budget = budget;
+        if(maximumWeight == 0) {
+            // The manager can't weigh more than the whole budget
+            installPolicy(budget != null ? weightedPolicy(budget.getMaximumBytes()) : null);
+        }
+        return true;
+    }
+
+    /***
+     * Replaces the eviction policy. The objects that are already
+     * loaded are admitted to it, so they count towards the new
+     * bound and are evicted down to it.
+     */
+    private void installPolicy(TinyLfuPolicy policy) {
+        evictionPolicy = policy;
+        if(policy == null) return;
+        for(String key : loadedObjects.keySet()) {
+            admit(key);
+        }
+    }
+
+    private TinyLfuPolicy weightedPolicy(long maximumWeight) {
+        // Sized for objects of about a kilobyte
+        int expectedKeys = (int) Math.max(16, Math.min(1 << 24, maximumWeight / 1024));
+        return new TinyLfuPolicy(maximumWeight, true, expectedKeys);
+    }
+
+    /***
+     * Evicts the coldest objects for the storage budget.
+     *
+     * @return Number of objects evicted
+     */
+    int trim(long bytes) {
+        TinyLfuPolicy policy = evictionPolicy;
+        if(policy == null || !policy.isWeighted()) return 0;
+        List<String> victims = policy.shrink(bytes);
+        for(String victim : victims) {
+            evict(victim, policy);
+        }
+        return victims.size();
+    }
+
+    private void recordAccess(String key) {
+        TinyLfuPolicy policy = evictionPolicy;
+        if(policy != null) policy.recordAccess(key);
+    }
+
+    private void admit(String key) {
+        TinyLfuPolicy policy = evictionPolicy;
+        if(policy == null) return;
+
+        int weight = 1;
+        if(policy.isWeighted()) {
+            Value value = loadedObjects.get(key);
+            if(value == null) return;
+            weight = (int) Math.min(Integer.MAX_VALUE, ObjectProcessor.estimateSize(value));
+        }
+        for(String victim : policy.admit(key, weight)) {
+            evict(victim, policy);
+        }
+
+        StorageBudget current = budget;
+        if(current != null) current.enforce();
+    }
+
+    private void evict(String key, TinyLfuPolicy policy) {
+        if(release(key) && writtenBack.incrementAndGet() >= Math.max(1, policy.size() / 4)) {
+            writtenBack.set(0);
+            saveAsync();
+        }
+    }
+
+    /***
+     * Drops a loaded object, changed objects are handed
+     * to the file loader first.
+     *
+     * @return Whether the object had to be written back
+     */
+    private boolean release(String key) {
+        Value value = loadedObjects.get(key);
+        if(value == null) return false;
+
+        if(changedKeys.contains(key) || savingKeys.contains(key) || !storage.containsKey(key) || isEdited(key, value)) {
+            // A running snapshot save writes its older copy first, so it can't overwrite this one
+            ManagerSnapshot<Value> current = snapshot;
+            if(current != null) current.write(key);
+            serialize(key);
+            // Its section isn't on disk until the next save
+            changedKeys.add(key);
+            if(loadedObjects.remove(key, value)) forget(key);
+            return true;
+        }
+
+        if(loadedObjects.remove(key, value)) {
+            forget(key);
+            // A save that took the object since it was checked writes a new section
+            if(!savingKeys.contains(key)) storage.unloadData(key);
+        }
+        return false;
+    }
+
+    /***
+     * Without dirty tracking, objects may be edited in place after
+     * a plain get(), so the object is compared with its stored copy.
+     * With it, only the changed keys count, as they do for saves.
+     */
+    private boolean isEdited(String key, Value value) {
+        if(dirtyTracking) return false;
+        try {
+            FileSection section = storage.get(key);
+            if(section == null) return true;
+            JsonObject stored = section.getRawData();
+            if(stored == null) stored = storage.loadData(section).getRawData();
+            JsonObject current = ObjectProcessor.toJson(value, clazz);
+            // Null fields aren't written to the file
+            current.entrySet().removeIf(member -> member.getValue().isJsonNull());
+            return !current.equals(stored);
+        } catch (Exception e) {
+            // Written back when in doubt
+            return true;
+        }
+    }
+
+    // Drops the access time and idle timer of an object that is no longer loaded
+    private void forget(String key) {
+        lastAccessed.remove(key);
+        if(!expiresAt.containsKey(key)) timers.cancel(key);
+        // An ordered file loader lists the key from here on
+        if(storage.isOrdered()) sortedKeys.remove(key);
     }
 
     // Map Functions
@@ -231,6 +834,10 @@ public class Manager<Value> implements Map<String, Value> {
 
     @Override
     public boolean containsKey(Object key) {
+        if(isExpired(key)) {
+            remove(key);
+            return false;
+        }
         return loadedObjects.containsKey(key) || storage.containsKey(key);
     }
 
@@ -241,49 +848,399 @@ public class Manager<Value> implements Map<String, Value> {
 
     @Override
     public Value get(Object key) {
-        if(!loadedObjects.containsKey(key) && storage.containsKey(key)) {
-            loadedObjects.put((String) key, loadObject(storage.get(key)));
+        // The timer may not have fired yet
+        if(isExpired(key)) {
+            remove(key);
+            return null;
         }
-        lastAccessed.put(key.toString(), System.currentTimeMillis());
-        return loadedObjects.get(key);
+        Value value = loadedObjects.get(key);
+        if(value != null) {
+            recordAccess(key.toString());
+        } else if(storage.containsKey(key)) {
+            value = load(key.toString());
+        }
+        if(value != null) touch(key.toString(), System.currentTimeMillis());
+        return value;
+    }
+
+    /***
+     * Loads an object from storage, or waits for the
+     * thread that is already loading it.
+     */
+    private Value load(String key) {
+        CompletableFuture<Value> flight = new CompletableFuture<>();
+        CompletableFuture<Value> running = loading.putIfAbsent(key, flight);
+        if(running != null) return running.join();
+
+        Value value = null;
+        try {
+            // Put before the load was registered
+            value = loadedObjects.get(key);
+            if(value != null) return value;
+
+            FileSection section = storage.get(key);
+            if(section != null) value = publish(key, flight, loadObject(section));
+            return value;
+        } finally {
+            loading.remove(key, flight);
+            flight.complete(value);
+        }
+    }
+
+    /***
+     * Caches a loaded object, unless the key was written
+     * while it was loading. Writers drop the load of the key
+     * before they change the loaded objects, so a stale copy
+     * never replaces or brings back what they wrote.
+     *
+     * @return The object now loaded under the key, if any
+     */
+    private Value publish(String key, CompletableFuture<Value> flight, Value value) {
+        boolean[] added = new boolean[1];
+        Value current = loadedObjects.compute(key, (k, loaded) -> {
+            if(loaded != null || value == null || loading.get(k) != flight) return loaded;
+            added[0] = true;
+            return value;
+        });
+        if(added[0]) admit(key);
+        return current;
+    }
+
+    /***
+     * Gets an object without blocking the calling thread. A
+     * loaded object completes the future right away, others are
+     * read and loaded on the read executor. The future fails with
+     * a RejectedExecutionException when the executor is full.
+     *
+     * @param key Key of the object
+     * @return The object, or null if it doesn't exist
+     */
+    public CompletableFuture<Value> getAsync(String key) {
+        if(!isExpired(key)) {
+            Value value = loadedObjects.get(key);
+            if(value != null) {
+                recordAccess(key);
+                touch(key, System.currentTimeMillis());
+                return CompletableFuture.completedFuture(value);
+            }
+            if(!storage.containsKey(key)) return CompletableFuture.completedFuture(null);
+        }
+        return readAsync(() -> get(key));
+    }
+
+    /***
+     * Gets many objects without blocking the calling thread. The
+     * loaded ones are taken right away and the rest are read
+     * together on the read executor, like getAll() would.
+     *
+     * @return The objects found, by key
+     */
+    public CompletableFuture<Map<String, Value>> getAllAsync(Collection<String> keys) {
+        Map<String, Value> found = new HashMap<>(keys.size() * 4 / 3 + 1);
+        List<String> missing = new ArrayList<>();
+        long time = System.currentTimeMillis();
+        for(String key : keys) {
+            // Expired objects are removed by getAll()
+            Value value = isExpired(key) ? null : loadedObjects.get(key);
+            if(value != null) {
+                found.put(key, value);
+                touch(key, time);
+                recordAccess(key);
+            } else if(isExpired(key) || storage.containsKey(key)) {
+                missing.add(key);
+            }
+        }
+        if(missing.isEmpty()) return CompletableFuture.completedFuture(found);
+
+        return readAsync(() -> {
+            found.putAll(getAll(missing));
+            return found;
+        });
+    }
+
+    private <T> CompletableFuture<T> readAsync(Supplier<T> read) {
+        try {
+            return CompletableFuture.supplyAsync(read, readExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /***
+     * Gets an object that is about to be edited in place,
+     * so the next save writes it even with dirty tracking.
+     *
+     * @param key Key of the object
+     * @return The object, or null if it doesn't exist
+     */
+    public Value getMutable(String key) {
+        Value value = get(key);
+        if(value == null) return null;
+
+        boolean locked = snapshotSaves;
+        if(locked) snapshotLock.readLock().lock();
+        try {
+            // The running save gets the object before it is changed
+            ManagerSnapshot<Value> current = snapshot;
+            if(current != null) current.write(key);
+            markDirty(key);
+        } finally {
+            if(locked) snapshotLock.readLock().unlock();
+        }
+        return value;
     }
 
     @Override
     public Value put(String key, Value value) {
-        lastAccessed.put(key, System.currentTimeMillis());
-        return loadedObjects.put(key, value);
+        boolean locked = snapshotSaves;
+        if(locked) snapshotLock.readLock().lock();
+        Value previous;
+        try {
+            previous = store(key, value, System.currentTimeMillis());
+        } finally {
+            if(locked) snapshotLock.readLock().unlock();
+        }
+        // Evictions can start a save, which needs the snapshot lock
+        admit(key);
+        return previous;
+    }
+
+    private Value store(String key, Value value, long time) {
+        // The running save gets the replaced object before the new one can be written back
+        ManagerSnapshot<Value> current = snapshot;
+        if(current != null) current.write(key);
+
+        // A plain put keeps the object until it is removed
+        if(expiresAt.remove(key) != null) timers.cancel(key);
+        touch(key, time);
+        loading.remove(key);
+        Value previous = loadedObjects.put(key, value);
+        sortedKeys.add(key);
+        if(fieldIndex != null) fieldIndex.update(key, ObjectProcessor.pullIndexedFields(value, clazz));
+        changedKeys.add(key);
+        if(journal != null) journalPut(key, value);
+        return previous;
     }
 
     public Value put(Value value) {
-        String key = ObjectProcessor.getName(value);
-        lastAccessed.put(key, System.currentTimeMillis());
-        return put(key, value);
+        return put(ObjectProcessor.getName(value), value);
     }
 
     @Override
     public Value remove(Object key) {
-        storage.remove(key.toString());
+        boolean locked = snapshotSaves;
+        if(locked) snapshotLock.readLock().lock();
+        try {
+            return delete(key.toString());
+        } finally {
+            if(locked) snapshotLock.readLock().unlock();
+        }
+    }
+
+    private Value delete(String key) {
+        // Keeps the running save from writing it back
+        ManagerSnapshot<Value> current = snapshot;
+        if(current != null) current.discard(key);
+
+        storage.remove(key);
+        // After the stored copy is gone, a load starting now can't find it
+        loading.remove(key);
         lastAccessed.remove(key);
-        return loadedObjects.remove(key);
+        expiresAt.remove(key);
+        timers.cancel(key);
+        Value value = loadedObjects.remove(key);
+        sortedKeys.remove(key);
+        if(fieldIndex != null) fieldIndex.remove(key);
+        if(evictionPolicy != null) evictionPolicy.remove(key);
+        changedKeys.add(key);
+        if(journal != null) journal.appendRemoval(key);
+        return value;
     }
 
+    // Batch Functions
+
     @Override
     public void putAll(Map<? extends String, ? extends Value> m) {
+        boolean locked = snapshotSaves;
+        if(locked) snapshotLock.readLock().lock();
+        try {
+            long time = System.currentTimeMillis();
+            for(Entry<? extends String, ? extends Value> entry : m.entrySet()) {
+                store(entry.getKey(), entry.getValue(), time);
+            }
+        } finally {
+            if(locked) snapshotLock.readLock().unlock();
+        }
+        for(String key : m.keySet()) {
+            admit(key);
+        }
+    }
+
+    /***
+     * Puts every object under its own key.
+     */
+    public void putAll(Collection<? extends Value> values) {
+        boolean locked = snapshotSaves;
+        if(locked) snapshotLock.readLock().lock();
+        List<String> keys = new ArrayList<>(values.size());
+        try {
+            long time = System.currentTimeMillis();
+            for(Value value : values) {
+                String key = ObjectProcessor.getName(value);
+                store(key, value, time);
+                keys.add(key);
+            }
+        } finally {
+            if(locked) snapshotLock.readLock().unlock();
+        }
+        for(String key : keys) {
+            admit(key);
+        }
+    }
+
+    /***
+     * Gets many objects at once. The ones that aren't loaded
+     * are read together, letting the file loader order or
+     * spread the reads, and are loaded like get() would.
+     *
+     * @return The objects found, by key
+     */
+    public Map<String, Value> getAll(Collection<String> keys) {
+        Map<String, Value> found = new HashMap<>(keys.size() * 4 / 3 + 1);
+        Map<String, CompletableFuture<Value>> flights = new HashMap<>();
+        Map<String, CompletableFuture<Value>> waiting = new HashMap<>();
+        List<FileSection> missing = new ArrayList<>();
+        long time = System.currentTimeMillis();
+
+        try {
+            for(String key : keys) {
+                if(isExpired(key)) {
+                    remove(key);
+                    continue;
+                }
+                Value value = loadedObjects.get(key);
+                if(value != null) {
+                    found.put(key, value);
+                    touch(key, time);
+                    recordAccess(key);
+                    continue;
+                }
+                if(flights.containsKey(key) || waiting.containsKey(key) || !storage.containsKey(key)) continue;
+
+                CompletableFuture<Value> flight = new CompletableFuture<>();
+                CompletableFuture<Value> running = loading.putIfAbsent(key, flight);
+                if(running != null) {
+                    waiting.put(key, running);
+                    continue;
+                }
+                flights.put(key, flight);
 
+                FileSection section = storage.get(key);
+                if(section == null) continue;
+                if(section.getRawData() != null) {
+                    cacheLoaded(found, key, flight, loadObject(section), time);
+                } else {
+                    missing.add(section);
+                }
+            }
+
+            if(!missing.isEmpty()) {
+                try {
+                    for(FileSection section : storage.loadAllData(missing).values()) {
+                        cacheLoaded(found, section.getKey(), flights.get(section.getKey()), loadObject(section), time);
+                    }
+                } catch (IOException e) {
+                    Logger.error("Failed to load " + missing.size() + " objects of " + getName());
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            // Finished before waiting on others, so two batches never wait on each other
+            for(Entry<String, CompletableFuture<Value>> flight : flights.entrySet()) {
+                loading.remove(flight.getKey(), flight.getValue());
+                flight.getValue().complete(found.get(flight.getKey()));
+            }
+        }
+
+        for(Entry<String, CompletableFuture<Value>> entry : waiting.entrySet()) {
+            Value value = entry.getValue().join();
+            if(value != null) {
+                found.put(entry.getKey(), value);
+                touch(entry.getKey(), time);
+            }
+        }
+        return found;
+    }
+
+    private void cacheLoaded(Map<String, Value> found, String key, CompletableFuture<Value> flight, Value value, long time) {
+        Value current = publish(key, flight, value);
+        if(current == null) return;
+        found.put(key, current);
+        touch(key, time);
+    }
+
+    public void removeAll(Collection<String> keys) {
+        boolean locked = snapshotSaves;
+        if(locked) snapshotLock.readLock().lock();
+        try {
+            for(String key : keys) {
+                delete(key);
+            }
+        } finally {
+            if(locked) snapshotLock.readLock().unlock();
+        }
     }
 
+    /***
+     * Removes every object, and saves the empty manager. It takes
+     * the place of a save in the save pipeline, so it waits for a
+     * running save and saves asked for meanwhile run after it.
+     */
     @Override
     public void clear() {
-        loadedObjects.clear();
-        lastAccessed.clear();
-        storage.clear();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        while(true) {
+            CompletableFuture<Void> running;
+            synchronized (saveLock) {
+                running = savingFuture;
+                if(running == null) {
+                    savingFuture = future;
+                    break;
+                }
+            }
+            running.handle((result, failure) -> null).join();
+        }
+
         try {
-            storage.saveSections();
+            clearAndSave();
+            finishSave(future, null);
         } catch (FileLoader.FileException e) {
             e.printStackTrace();
+            finishSave(future, e);
+        } catch (RuntimeException | Error e) {
+            finishSave(future, e);
+            throw e;
         }
     }
 
+    private void clearAndSave() throws FileLoader.FileException {
+        loadedObjects.clear();
+        lastAccessed.clear();
+        expiresAt.clear();
+        timers.clear();
+        changedKeys.clear();
+        sortedKeys.clear();
+        if(fieldIndex != null) fieldIndex.clear();
+        if(evictionPolicy != null) evictionPolicy.clear();
+        int sealed = rotateJournal();
+        storage.clear();
+        loading.clear();
+        storage.saveSections();
+        if(sealed > 0) journal.truncate(sealed);
+    }
+
     @Override
     public Set<String> keySet() {
         ArrayList<String> keys = new ArrayList<>(storage.keySet());
@@ -291,6 +1248,211 @@ public class Manager<Value> implements Map<String, Value> {
         return new HashSet<>(keys);
     }
 
+    // Key Ranges
+
+    /***
+     * The keys from from, inclusive, up to to, exclusive, in
+     * order. Either bound can be null to leave that side open.
+     * The keys are read as the iteration reaches them, so later
+     * puts and removes may or may not be seen.
+     *
+     * An ordered file loader walks its own keys, only the loaded
+     * ones are merged in from memory.
+     */
+    public Iterable<String> rangeKeys(String from, String to) {
+        return () -> keyIterator(from, to);
+    }
+
+    /***
+     * The keys starting with the prefix, in order.
+     */
+    public Iterable<String> prefixKeys(String prefix) {
+        return rangeKeys(prefix, prefixEnd(prefix));
+    }
+
+    private Iterator<String> keyIterator(String from, String to) {
+        NavigableSet<String> keys = sortedKeys;
+        if(from != null && to != null) {
+            keys = sortedKeys.subSet(from, true, to, false);
+        } else if(from != null) {
+            keys = sortedKeys.tailSet(from, true);
+        } else if(to != null) {
+            keys = sortedKeys.headSet(to, false);
+        }
+        Iterator<String> loaded = keys.iterator();
+        if(!storage.isOrdered()) return loaded;
+
+        Iterator<String> stored = storage.keyIterator(from);
+        return new Iterator<String>() {
+            private String nextLoaded = null;
+            private String nextStored = null;
+            private boolean storedDone = false;
+
+            @Override
+            public boolean hasNext() {
+                if(nextLoaded == null && loaded.hasNext()) nextLoaded = loaded.next();
+                if(nextStored == null && !storedDone && stored.hasNext()) {
+                    nextStored = stored.next();
+                    if(to != null && nextStored.compareTo(to) >= 0) {
+                        // Past the range, the rest of the stored keys aren't read
+                        nextStored = null;
+                        storedDone = true;
+                    }
+                }
+                return nextLoaded != null || nextStored != null;
+            }
+
+            @Override
+            public String next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                int order = nextLoaded == null ? 1 : nextStored == null ? -1 : nextLoaded.compareTo(nextStored);
+                String key = order <= 0 ? nextLoaded : nextStored;
+                // A key that is both loaded and stored is only listed once
+                if(order <= 0) nextLoaded = null;
+                if(order >= 0) nextStored = null;
+                return key;
+            }
+        };
+    }
+
+    /***
+     * The objects with keys from from, inclusive, up to to,
+     * exclusive, in key order. Objects are read as the iteration
+     * reaches them, like stream() those that aren't loaded are
+     * never cached, so a long range doesn't fill the manager.
+     *
+     * Objects edited from the range are only saved if they
+     * were loaded, use getMutable() for those.
+     */
+    public Iterable<Value> range(String from, String to) {
+        return () -> new Iterator<Value>() {
+            private final Iterator<String> iterator = keyIterator(from, to);
+            private Value next = null;
+
+            @Override
+            public boolean hasNext() {
+                // Keys removed since the iteration started are skipped
+                while(next == null && iterator.hasNext()) {
+                    next = readDetached(iterator.next());
+                }
+                return next != null;
+            }
+
+            @Override
+            public Value next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                Value value = next;
+                next = null;
+                return value;
+            }
+        };
+    }
+
+    public Iterable<Value> prefix(String prefix) {
+        return range(prefix, prefixEnd(prefix));
+    }
+
+    /***
+     * The smallest key greater than every key starting
+     * with the prefix, or null if there is none.
+     */
+    private static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while(end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if(end == 0) return null;
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    // Streaming
+
+    /***
+     * Streams every object of the manager in key order, loaded
+     * and stored alike. Objects that aren't loaded are read from
+     * the file loader on the fly and never cached, so they can be
+     * released once processed and a full scan doesn't need the
+     * whole manager in memory.
+     *
+     * Objects edited from the stream are only saved if they
+     * were loaded, use getMutable() for those.
+     */
+    public Stream<Value> stream() {
+        return stream(false);
+    }
+
+    /***
+     * A parallel version of stream(), the keys are split
+     * between the threads and each reads its own objects.
+     */
+    public Stream<Value> parallelStream() {
+        return stream(true);
+    }
+
+    private Stream<Value> stream(boolean parallel) {
+        Spliterator<String> keys = storage.isOrdered()
+                ? Spliterators.spliteratorUnknownSize(keyIterator(null, null), Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.NONNULL)
+                : sortedKeys.spliterator();
+        return StreamSupport.stream(keys, parallel)
+                .map(this::readDetached)
+                .filter(Objects::nonNull);
+    }
+
+    /***
+     * The loaded object, or otherwise a fresh copy of the stored
+     * one that isn't kept by the manager or the file loader.
+     */
+    private Value readDetached(String key) {
+        Value loaded = loadedObjects.get(key);
+        if(loaded != null) return loaded;
+
+        FileSection section = storage.get(key);
+        if(section == null) return null;
+        try {
+            JsonObject data = section.getRawData();
+            if(data == null) {
+                FileSection read = storage.loadData(section);
+                if(read == null) return null;
+                data = read.getRawData();
+            }
+            return data == null ? null : ObjectProcessor.toObject(data, clazz);
+        } catch (IOException | ProcessorException e) {
+            Logger.error("Failed to read object " + key);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Field Indexes
+
+    /***
+     * The keys of the objects whose indexed field holds the
+     * value. Objects edited in place are found by their new
+     * value once markDirty() is called or they are saved.
+     *
+     * @param field Name of a field annotated with @Indexed
+     * @param value Value to look for, compared the way it is stored
+     */
+    public Set<String> findKeysBy(String field, Object value) {
+        if(fieldIndex == null || !fieldIndex.hasField(field)) {
+            throw new IllegalArgumentException("Field " + field + " of " + clazz.getName() + " is not indexed");
+        }
+        return fieldIndex.find(field, ObjectProcessor.toJsonTree(value));
+    }
+
+    /***
+     * The objects whose indexed field holds the value,
+     * only the matching objects are loaded.
+     */
+    public List<Value> findBy(String field, Object value) {
+        List<Value> found = new ArrayList<>();
+        for(String key : findKeysBy(field, value)) {
+            Value object = get(key);
+            if(object != null) found.add(object);
+        }
+        return found;
+    }
+
     @Deprecated
     @Override
     public Collection<Value> values() {
@@ -0,0 +1,125 @@
+package net.xilla.boot.storage.manager;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * Maps the values of the indexed fields of a manager to the
+ * keys of the objects holding them. Values are kept as they
+ * are stored in json, so the index can be built from stored
+ * data without creating the objects.
+ *
+ * The values last indexed for every key are remembered, so
+ * an object edited in place is moved to its new values when
+ * it is indexed again.
+ *
+ * Numbers are kept in one form, a number parsed from a file
+ * and the same number taken from an object don't hash alike.
+ */
+class ManagerIndex {
+
+    private final List<String> fields;
+
+    private final Map<String, ConcurrentHashMap<JsonElement, Set<String>>> indexes = new HashMap<>();
+
+    private final ConcurrentHashMap<String, Map<String, JsonElement>> indexed = new ConcurrentHashMap<>();
+
+    ManagerIndex(List<String> fields) {
+        this.fields = fields;
+        for(String field : fields) {
+            indexes.put(field, new ConcurrentHashMap<>());
+        }
+    }
+
+    boolean hasField(String field) {
+        return indexes.containsKey(field);
+    }
+
+    void update(String key, JsonObject json) {
+        Map<String, JsonElement> values = new HashMap<>();
+        for(String field : fields) {
+            values.put(field, json.get(field));
+        }
+        update(key, values);
+    }
+
+    synchronized void update(String key, Map<String, JsonElement> values) {
+        Map<String, JsonElement> current = new HashMap<>();
+        for(String field : fields) {
+            // Null members aren't written, so they read back as missing
+            current.put(field, normalize(values.get(field)));
+        }
+
+        Map<String, JsonElement> previous = indexed.put(key, current);
+        for(String field : fields) {
+            JsonElement value = current.get(field);
+            if(previous != null) {
+                JsonElement old = previous.get(field);
+                if(old.equals(value)) continue;
+                unlink(field, old, key);
+            }
+            indexes.get(field).computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    synchronized void remove(String key) {
+        Map<String, JsonElement> previous = indexed.remove(key);
+        if(previous == null) return;
+        for(String field : fields) {
+            unlink(field, previous.get(field), key);
+        }
+    }
+
+    private void unlink(String field, JsonElement value, String key) {
+        indexes.get(field).computeIfPresent(value, (v, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    Set<String> find(String field, JsonElement value) {
+        Set<String> keys = indexes.get(field).get(normalize(value));
+        return keys == null ? new HashSet<>() : new HashSet<>(keys);
+    }
+
+    private static JsonElement normalize(JsonElement value) {
+        if(value == null || value.isJsonNull()) return JsonNull.INSTANCE;
+        if(value.isJsonPrimitive()) {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if(!primitive.isNumber()) return primitive;
+            try {
+                return new JsonPrimitive(new BigDecimal(primitive.getAsString()).stripTrailingZeros());
+            } catch (NumberFormatException ex) {
+                // NaN and infinity, only read by lenient parsers
+                return primitive;
+            }
+        }
+        if(value.isJsonArray()) {
+            JsonArray array = new JsonArray();
+            for(JsonElement element : value.getAsJsonArray()) {
+                array.add(normalize(element));
+            }
+            return array;
+        }
+        JsonObject object = new JsonObject();
+        for(Map.Entry<String, JsonElement> member : value.getAsJsonObject().entrySet()) {
+            object.add(member.getKey(), normalize(member.getValue()));
+        }
+        return object;
+    }
+
+    synchronized void clear() {
+        indexed.clear();
+        for(ConcurrentHashMap<JsonElement, Set<String>> index : indexes.values()) {
+            index.clear();
+        }
+    }
+
+}
@@ -0,0 +1,340 @@
+package net.xilla.boot.storage.manager;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.Getter;
+import lombok.Setter;
+import net.xilla.boot.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/***
+ * A write-ahead journal for a manager. Every put and remove
+ * is appended as a json line, and the lines are forced to disk
+ * in groups, once batchSize changes are waiting or after the
+ * commit interval, so a single fsync covers many changes.
+ *
+ * A save starts a new journal segment and deletes the older
+ * ones after it succeeds. Whatever is left is replayed over
+ * the saved data on the next startup.
+ */
+public class ManagerJournal {
+
+    private static final Gson gson = new Gson();
+
+    private static final String EXTENSION = ".journal";
+
+    private final File folder;
+
+    /***
+     * Milliseconds a commit waits for more changes to join it.
+     */
+    @Getter
+    @Setter
+    private int commitInterval = 50;
+
+    /***
+     * Number of waiting changes that commits right away.
+     */
+    @Getter
+    @Setter
+    private int batchSize = 256;
+
+    /***
+     * When enabled a put or remove only returns once its
+     * change was forced to disk. Otherwise a crash can lose
+     * up to one commit interval of changes.
+     */
+    @Getter
+    @Setter
+    private boolean synchronous = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition waiting = lock.newCondition();
+
+    private final Condition committed = lock.newCondition();
+
+    private int active = 0;
+
+    private FileOutputStream fileStream = null;
+
+    private OutputStream stream = null;
+
+    private long appended = 0;
+
+    private long synced = 0;
+
+    private Thread committer = null;
+
+    private boolean closed = false;
+
+    public ManagerJournal(String folderPath) {
+        this.folder = new File(folderPath);
+    }
+
+    // Writing
+
+    public void append(String key, JsonObject data) {
+        JsonObject record = new JsonObject();
+        record.addProperty("key", key);
+        record.add("data", data);
+        write(record);
+    }
+
+    public void appendRemoval(String key) {
+        JsonObject record = new JsonObject();
+        record.addProperty("key", key);
+        record.addProperty("removed", true);
+        write(record);
+    }
+
+    private void write(JsonObject record) {
+        byte[] line = (gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        lock.lock();
+        try {
+            if(stream == null) openSegment();
+            stream.write(line);
+            long sequence = ++appended;
+            waiting.signal();
+
+            while(synchronous && synced < sequence && !closed) {
+                committed.await();
+            }
+        } catch (IOException e) {
+            Logger.error("Failed to write to the journal in " + folder);
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Starts a new segment, everything written so far is
+     * forced to disk first.
+     *
+     * @return Id of the newest segment that was sealed
+     */
+    public int rotate() throws IOException {
+        lock.lock();
+        try {
+            if(stream == null) openSegment();
+            int sealed = active;
+            closeSegment();
+            active++;
+            openSegment();
+            return sealed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Deletes the sealed segments, once a save made
+     * their changes part of the stored data.
+     */
+    public void truncate(int sealed) {
+        for(int id : listSegments()) {
+            if(id > sealed) continue;
+            File file = segmentFile(id);
+            if(!file.delete() && file.exists()) {
+                Logger.warn("Failed to delete journal segment " + file);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            closeSegment();
+            waiting.signalAll();
+            committed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Replaying
+
+    /***
+     * Replays every segment in order. Removals are passed
+     * with null data. A torn line at the end of a segment,
+     * left by a crash in the middle of a write, is skipped.
+     */
+    public void replay(BiConsumer<String, JsonObject> consumer) throws IOException {
+        lock.lock();
+        try {
+            closeSegment();
+
+            int records = 0;
+            List<Integer> segments = listSegments();
+            for(int id : segments) {
+                try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(segmentFile(id)), StandardCharsets.UTF_8))) {
+                    String line;
+                    while((line = reader.readLine()) != null) {
+                        JsonObject record;
+                        try {
+                            record = JsonParser.parseString(line).getAsJsonObject();
+                        } catch (Exception ex) {
+                            Logger.warn("Skipping a torn record in journal segment " + segmentFile(id));
+                            break;
+                        }
+
+                        JsonElement removed = record.get("removed");
+                        if(removed != null && removed.getAsBoolean()) {
+                            consumer.accept(record.get("key").getAsString(), null);
+                        } else {
+                            consumer.accept(record.get("key").getAsString(), record.getAsJsonObject("data"));
+                        }
+                        records++;
+                    }
+                }
+                active = Math.max(active, id);
+            }
+            if(records > 0) {
+                Logger.info("Replayed " + records + " journal records from " + folder);
+            }
+
+            // New changes go after everything that was replayed
+            active++;
+            openSegment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Segments
+
+    private void openSegment() throws IOException {
+        if(!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create folder " + folder);
+        }
+        if(active == 0) {
+            List<Integer> segments = listSegments();
+            active = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        }
+
+        fileStream = new FileOutputStream(segmentFile(active), true);
+        stream = new BufferedOutputStream(fileStream);
+        closed = false;
+        startCommitter();
+    }
+
+    private void closeSegment() throws IOException {
+        if(stream == null) return;
+        stream.flush();
+        fileStream.getChannel().force(false);
+        stream.close();
+        stream = null;
+        fileStream = null;
+
+        synced = appended;
+        committed.signalAll();
+    }
+
+    private void startCommitter() {
+        if(committer != null) return;
+
+        committer = new Thread(this::runCommitter, "ManagerJournal committer (" + folder + ")");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /***
+     * Forces the journal to disk in groups. The fsync runs
+     * without the lock, so changes keep being appended while
+     * the previous group is committed.
+     */
+    private void runCommitter() {
+        while(true) {
+            FileOutputStream target;
+            long sequence;
+
+            lock.lock();
+            try {
+                while(!closed && appended == synced) {
+                    waiting.await();
+                }
+                if(closed) {
+                    committer = null;
+                    return;
+                }
+                // Give the group a chance to fill up. Waiting writers commit right away,
+                // the ones arriving during that fsync form the next group.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitInterval);
+                while(!synchronous && !closed && stream != null && appended - synced < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) break;
+                    waiting.awaitNanos(remaining);
+                }
+                if(stream == null) continue;
+
+                stream.flush();
+                target = fileStream;
+                sequence = appended;
+            } catch (InterruptedException e) {
+                committer = null;
+                return;
+            } catch (IOException e) {
+                Logger.error("Failed to flush the journal in " + folder);
+                e.printStackTrace();
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                target.getChannel().force(false);
+            } catch (IOException e) {
+                // A rotation closed the segment, which forced it already
+                if(target.getChannel().isOpen()) {
+                    Logger.error("Failed to commit the journal in " + folder);
+                    e.printStackTrace();
+                }
+            }
+
+            lock.lock();
+            try {
+                synced = Math.max(synced, sequence);
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private List<Integer> listSegments() {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if(files == null) return ids;
+
+        for(File file : files) {
+            try {
+                ids.add(Integer.parseInt(file.getName().substring(0, file.getName().length() - EXTENSION.length())));
+            } catch (NumberFormatException ex) {
+                Logger.warn("Ignoring unknown file " + file + " in journal folder");
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File segmentFile(int id) {
+        return new File(folder, String.format("%08d", id) + EXTENSION);
+    }
+
+}
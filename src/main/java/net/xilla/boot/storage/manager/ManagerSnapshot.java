@@ -0,0 +1,70 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.Logger;
+import net.xilla.boot.reflection.ObjectProcessor;
+import net.xilla.boot.reflection.ProcessorException;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * The objects of a manager as they were at the moment a save
+ * started. Every object is written to the file loader once,
+ * either by the save or, when it is about to be edited, by
+ * the editing thread first.
+ *
+ * Writing and discarding a key lock the same entry, so a key
+ * removed during the save can't be written back afterwards.
+ */
+class ManagerSnapshot<Value> {
+
+    private static final Object WRITTEN = new Object();
+
+    private final Class<Value> clazz;
+
+    private final FileLoader storage;
+
+    private final ConcurrentHashMap<String, Object> entries;
+
+    ManagerSnapshot(Class<Value> clazz, FileLoader storage, Map<String, Value> objects, Collection<String> keys) {
+        this.clazz = clazz;
+        this.storage = storage;
+        this.entries = new ConcurrentHashMap<>(Math.max(16, keys.size() * 4 / 3));
+        for(String key : keys) {
+            Value value = objects.get(key);
+            if(value != null) entries.put(key, value);
+        }
+    }
+
+    List<String> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /***
+     * Writes the captured object to the file loader,
+     * unless it was already written or discarded.
+     */
+    @SuppressWarnings("unchecked")
+    void write(String key) {
+        entries.computeIfPresent(key, (k, entry) -> {
+            if(entry == WRITTEN) return entry;
+            try {
+                storage.put(key, new FileSection(key, ObjectProcessor.toJson((Value) entry, clazz), storage));
+            } catch (ProcessorException e) {
+                Logger.error("Failed to load object " + key);
+                e.printStackTrace();
+            }
+            return WRITTEN;
+        });
+    }
+
+    void discard(String key) {
+        entries.remove(key);
+    }
+
+}
@@ -0,0 +1,80 @@
+package net.xilla.boot.storage.manager;
+
+import lombok.Getter;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * A number of bytes shared by the loaded objects of several
+ * managers. Every manager weighs its objects by their estimated
+ * size, and once they weigh more than the budget together, the
+ * coldest objects of the heaviest manager are evicted.
+ *
+ * A manager may still have a maximum weight of its own, it then
+ * stays below both.
+ */
+public class StorageBudget {
+
+    @Getter
+    private final long maximumBytes;
+
+    private final Set<Manager<?>> managers = ConcurrentHashMap.newKeySet();
+
+    private final ReentrantLock trimming = new ReentrantLock();
+
+    public StorageBudget(long maximumBytes) {
+        if(maximumBytes <= 0) throw new IllegalArgumentException("A storage budget needs a positive size");
+        this.maximumBytes = maximumBytes;
+    }
+
+    /***
+     * Adds a manager to the budget. The objects it already
+     * loaded count right away, and are trimmed when the
+     * managers don't fit anymore.
+     */
+    public void register(Manager<?> manager) {
+        if(!manager.setBudget(this)) return;
+        managers.add(manager);
+        enforce();
+    }
+
+    public void unregister(Manager<?> manager) {
+        if(managers.remove(manager)) manager.setBudget(null);
+    }
+
+    /***
+     * @return Estimated bytes of the loaded objects of all managers
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for(Manager<?> manager : managers) {
+            used += manager.getLoadedWeight();
+        }
+        return used;
+    }
+
+    /***
+     * Evicts objects until the managers fit the budget again. A
+     * thread finding another one already doing so moves on, the
+     * other thread sees its objects too.
+     */
+    void enforce() {
+        if(!trimming.tryLock()) return;
+        try {
+            long used = getUsedBytes();
+            while(used > maximumBytes) {
+                Manager<?> heaviest = null;
+                for(Manager<?> manager : managers) {
+                    if(heaviest == null || manager.getLoadedWeight() > heaviest.getLoadedWeight()) heaviest = manager;
+                }
+                if(heaviest == null || heaviest.trim(used - maximumBytes) == 0) break;
+                used = getUsedBytes();
+            }
+        } finally {
+            trimming.unlock();
+        }
+    }
+
+}
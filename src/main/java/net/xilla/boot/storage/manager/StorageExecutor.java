@@ -0,0 +1,96 @@
+package net.xilla.boot.storage.manager;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Creates the executors used for storage work. They have a
+ * bounded queue and by default run tasks on the submitting
+ * thread once the queue is full, so a burst of work slows its
+ * callers down instead of piling up in memory.
+ *
+ * The threads are daemons and never keep the program alive.
+ */
+public class StorageExecutor {
+
+    private static volatile ThreadPoolExecutor saveExecutor = null;
+
+    private static volatile ThreadPoolExecutor readExecutor = null;
+
+    private static volatile ScheduledExecutorService scheduler = null;
+
+    /***
+     * The executor managers save on unless they were given
+     * their own. Saves are started from the timer thread too,
+     * so a full queue rejects the save and the manager tries
+     * again later, instead of saving on the caller.
+     */
+    public static ThreadPoolExecutor getSaveExecutor() {
+        if(saveExecutor == null) {
+            synchronized (StorageExecutor.class) {
+                if(saveExecutor == null) {
+                    saveExecutor = create("Storage save", Math.max(2, Runtime.getRuntime().availableProcessors() / 2), 64,
+                            new ThreadPoolExecutor.AbortPolicy());
+                }
+            }
+        }
+        return saveExecutor;
+    }
+
+    /***
+     * The executor managers load objects on for asynchronous
+     * reads unless they were given their own. Its callers may
+     * be threads that must never block, so a full queue rejects
+     * the read instead of running it on the caller.
+     */
+    public static ThreadPoolExecutor getReadExecutor() {
+        if(readExecutor == null) {
+            synchronized (StorageExecutor.class) {
+                if(readExecutor == null) {
+                    readExecutor = create("Storage read", Math.max(4, Runtime.getRuntime().availableProcessors()), 1024,
+                            new ThreadPoolExecutor.AbortPolicy());
+                }
+            }
+        }
+        return readExecutor;
+    }
+
+    /***
+     * Runs the periodic work of all managers, like expiring
+     * objects and starting auto saves. Tasks on it should be
+     * short, longer work is handed to another executor.
+     */
+    public static ScheduledExecutorService getScheduler() {
+        if(scheduler == null) {
+            synchronized (StorageExecutor.class) {
+                if(scheduler == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory("Storage timer"));
+                    executor.setRemoveOnCancelPolicy(true);
+                    scheduler = executor;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    public static ThreadPoolExecutor create(String name, int threads, int queueSize) {
+        return create(name, threads, queueSize, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public static ThreadPoolExecutor create(String name, int threads, int queueSize, RejectedExecutionHandler handler) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory(name), handler);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,180 @@
+package net.xilla.boot.storage.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * A hierarchical timing wheel holding one timer per key.
+ * Every level is a ring of 64 buckets, each bucket covering
+ * 64 times the time of a bucket on the level below, from about
+ * a second up to about half a year. A timer sits in the bucket
+ * of its deadline on the lowest level that reaches that far.
+ *
+ * Advancing the clock only visits the buckets that passed.
+ * Timers that are due are returned, the others in those buckets
+ * move down to a finer level. Scheduling and cancelling are
+ * constant time, so the work done is proportional to the
+ * timers that fire, not to the number of keys.
+ */
+class TimerWheel {
+
+    private static final int BUCKETS = 64;
+
+    // Milliseconds per bucket, as shifts: ~1s, ~1m, ~1h, ~3d
+    private static final int[] SHIFTS = {10, 16, 22, 28};
+
+    private final Timer[][] wheel = new Timer[SHIFTS.length][BUCKETS];
+
+    private final Map<String, Timer> timers = new HashMap<>();
+
+    private long time;
+
+    TimerWheel(long time) {
+        this.time = time;
+        for(Timer[] level : wheel) {
+            for(int i = 0; i < BUCKETS; i++) {
+                level[i] = new Timer(null, 0, false);
+                level[i].previous = level[i];
+                level[i].next = level[i];
+            }
+        }
+    }
+
+    /***
+     * Sets the timer of a key, replacing the one it had.
+     *
+     * @param deadline Time the timer fires, in milliseconds
+     * @param removal Whether the key is removed or only unloaded
+     */
+    synchronized void schedule(String key, long deadline, boolean removal) {
+        Timer timer = timers.get(key);
+        if(timer != null) {
+            unlink(timer);
+        } else {
+            timer = new Timer(key, deadline, removal);
+            timers.put(key, timer);
+        }
+        timer.deadline = deadline;
+        timer.removal = removal;
+        link(timer);
+    }
+
+    /***
+     * Sets an idle timer for a key that has no timer.
+     */
+    synchronized void scheduleIfAbsent(String key, long deadline) {
+        if(timers.containsKey(key)) return;
+        Timer timer = new Timer(key, deadline, false);
+        timers.put(key, timer);
+        link(timer);
+    }
+
+    synchronized void cancel(String key) {
+        Timer timer = timers.remove(key);
+        if(timer != null) unlink(timer);
+    }
+
+    /***
+     * Moves the clock forward.
+     *
+     * @return The timers that are due, they are no longer scheduled
+     */
+    synchronized List<Timer> advance(long now) {
+        List<Timer> due = new ArrayList<>();
+        long previous = time;
+        if(now <= previous) return due;
+        time = now;
+
+        for(int level = 0; level < SHIFTS.length; level++) {
+            long previousTicks = previous >>> SHIFTS[level];
+            long currentTicks = now >>> SHIFTS[level];
+            if(currentTicks == previousTicks) break;
+
+            int steps = (int) Math.min(currentTicks - previousTicks + 1, BUCKETS);
+            for(int i = 0; i < steps; i++) {
+                Timer sentinel = wheel[level][(int) ((previousTicks + i) & (BUCKETS - 1))];
+                Timer timer = sentinel.next;
+                // Detached first, timers that aren't due yet are linked again
+                sentinel.next = sentinel;
+                sentinel.previous = sentinel;
+                while(timer != sentinel) {
+                    Timer next = timer.next;
+                    if(timer.deadline <= now) {
+                        timers.remove(timer.key);
+                        due.add(timer);
+                    } else {
+                        link(timer);
+                    }
+                    timer = next;
+                }
+            }
+        }
+        return due;
+    }
+
+    synchronized void clear() {
+        timers.clear();
+        for(Timer[] level : wheel) {
+            for(Timer sentinel : level) {
+                sentinel.next = sentinel;
+                sentinel.previous = sentinel;
+            }
+        }
+    }
+
+    private void link(Timer timer) {
+        long delay = Math.max(0, timer.deadline - time);
+        int level = 0;
+        while(level < SHIFTS.length - 1 && delay >= (1L << SHIFTS[level + 1])) {
+            level++;
+        }
+        // Further than the top level reaches, it waits in the last bucket and moves again
+        long deadline = Math.min(timer.deadline, time + ((long) (BUCKETS - 1) << SHIFTS[level]));
+        // A deadline in the current bucket goes in the next one, the current one was already visited
+        long ticks = Math.max(deadline >>> SHIFTS[level], (time >>> SHIFTS[level]) + 1);
+
+        Timer sentinel = wheel[level][(int) (ticks & (BUCKETS - 1))];
+        timer.next = sentinel;
+        timer.previous = sentinel.previous;
+        sentinel.previous.next = timer;
+        sentinel.previous = timer;
+    }
+
+    private void unlink(Timer timer) {
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.next = null;
+        timer.previous = null;
+    }
+
+    static class Timer {
+
+        private final String key;
+
+        private long deadline;
+
+        private boolean removal;
+
+        private Timer previous;
+
+        private Timer next;
+
+        private Timer(String key, long deadline, boolean removal) {
+            this.key = key;
+            this.deadline = deadline;
+            this.removal = removal;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        boolean isRemoval() {
+            return removal;
+        }
+
+    }
+
+}
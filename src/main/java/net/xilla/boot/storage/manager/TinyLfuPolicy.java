@@ -0,0 +1,303 @@
+package net.xilla.boot.storage.manager;
+
+import java.util.*;
+
+/***
+ * Decides which loaded objects of a manager to keep, in the
+ * style of W-TinyLFU. New keys enter a small LRU window. Keys
+ * leaving the window compete with the least recently used key
+ * of the main area, and the one used more often, according to
+ * a frequency sketch, stays.
+ *
+ * The main area is a segmented LRU. Keys enter on probation
+ * and are protected once they are used again, so a burst of
+ * one time reads can't push out the keys that are used all
+ * the time.
+ *
+ * Every key has a weight, 1 when the policy counts objects or
+ * the estimated size of the object when it counts bytes. The
+ * window and the segments are bounded by the total weight.
+ */
+class TinyLfuPolicy {
+
+    private final long maximumWeight;
+
+    private final long windowWeight;
+
+    private final long protectedWeight;
+
+    private final boolean weighted;
+
+    private final FrequencySketch sketch;
+
+    private final Map<String, Integer> weights = new HashMap<>();
+
+    // Insertion ordered, the first key is the least recently used
+    private final LinkedHashSet<String> window = new LinkedHashSet<>();
+
+    private final LinkedHashSet<String> probation = new LinkedHashSet<>();
+
+    private final LinkedHashSet<String> protectedKeys = new LinkedHashSet<>();
+
+    private long windowUsed = 0;
+
+    private long probationUsed = 0;
+
+    private long protectedUsed = 0;
+
+    /***
+     * @param maximumWeight Most weight to keep
+     * @param weighted Whether the weights are sizes, or every key weighs 1
+     * @param expectedKeys Number of keys the frequency sketch is sized for
+     */
+    TinyLfuPolicy(long maximumWeight, boolean weighted, int expectedKeys) {
+        this.maximumWeight = maximumWeight;
+        this.weighted = weighted;
+        this.windowWeight = Math.max(1, maximumWeight / 100);
+        this.protectedWeight = (maximumWeight - windowWeight) / 5 * 4;
+        this.sketch = new FrequencySketch(expectedKeys);
+    }
+
+    TinyLfuPolicy(int maximumSize) {
+        this(maximumSize, false, maximumSize);
+    }
+
+    long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    boolean isWeighted() {
+        return weighted;
+    }
+
+    synchronized long getWeight() {
+        return windowUsed + probationUsed + protectedUsed;
+    }
+
+    synchronized int size() {
+        return weights.size();
+    }
+
+    synchronized void recordAccess(String key) {
+        sketch.increment(key);
+        if(window.remove(key)) {
+            window.add(key);
+        } else if(probation.remove(key)) {
+            int weight = weights.get(key);
+            probationUsed -= weight;
+            protectedKeys.add(key);
+            protectedUsed += weight;
+            while(protectedUsed > protectedWeight && protectedKeys.size() > 1) {
+                // The least recently used protected key goes back on probation
+                String demoted = first(protectedKeys);
+                int demotedWeight = weights.get(demoted);
+                protectedKeys.remove(demoted);
+                protectedUsed -= demotedWeight;
+                probation.add(demoted);
+                probationUsed += demotedWeight;
+            }
+        } else if(protectedKeys.remove(key)) {
+            protectedKeys.add(key);
+        }
+    }
+
+    synchronized List<String> admit(String key) {
+        return admit(key, 1);
+    }
+
+    /***
+     * Adds a key that was just loaded or put, or updates
+     * the weight of a key that is already kept.
+     *
+     * @return The keys to evict, which can include the added key
+     */
+    synchronized List<String> admit(String key, int weight) {
+        if(!weighted) weight = 1;
+
+        Integer previous = weights.put(key, weight);
+        if(previous != null) {
+            adjust(key, weight - previous);
+            recordAccess(key);
+            return evictOverweight(new ArrayList<>());
+        }
+
+        sketch.increment(key);
+        window.add(key);
+        windowUsed += weight;
+
+        List<String> victims = new ArrayList<>();
+        // The newest key stays in the window, even when it alone is too heavy
+        while(windowUsed > windowWeight && window.size() > 1) {
+            String candidate = first(window);
+            int candidateWeight = weights.get(candidate);
+            window.remove(candidate);
+            windowUsed -= candidateWeight;
+
+            if(probationUsed + protectedUsed + candidateWeight <= maximumWeight - windowWeight) {
+                probation.add(candidate);
+                probationUsed += candidateWeight;
+                continue;
+            }
+
+            LinkedHashSet<String> segment = probation.isEmpty() ? protectedKeys : probation;
+            String victim = segment.isEmpty() ? null : first(segment);
+            if(victim != null && sketch.frequency(candidate) > sketch.frequency(victim)) {
+                // The victims are evicted below, from the least recently used end
+                probation.add(candidate);
+                probationUsed += candidateWeight;
+            } else {
+                weights.remove(candidate);
+                victims.add(candidate);
+            }
+        }
+        return evictOverweight(victims);
+    }
+
+    synchronized void remove(String key) {
+        Integer weight = weights.remove(key);
+        if(weight == null) return;
+        if(window.remove(key)) {
+            windowUsed -= weight;
+        } else if(probation.remove(key)) {
+            probationUsed -= weight;
+        } else if(protectedKeys.remove(key)) {
+            protectedUsed -= weight;
+        }
+    }
+
+    /***
+     * Picks the coldest keys until at least the given weight
+     * is freed, for when memory is needed elsewhere.
+     *
+     * @return The keys to evict
+     */
+    synchronized List<String> shrink(long weight) {
+        List<String> victims = new ArrayList<>();
+        long freed = 0;
+        while(freed < weight) {
+            String victim = coldest();
+            if(victim == null) break;
+            freed += weights.get(victim);
+            remove(victim);
+            victims.add(victim);
+        }
+        return victims;
+    }
+
+    synchronized void clear() {
+        weights.clear();
+        window.clear();
+        probation.clear();
+        protectedKeys.clear();
+        windowUsed = 0;
+        probationUsed = 0;
+        protectedUsed = 0;
+    }
+
+    private void adjust(String key, int difference) {
+        if(window.contains(key)) {
+            windowUsed += difference;
+        } else if(probation.contains(key)) {
+            probationUsed += difference;
+        } else {
+            protectedUsed += difference;
+        }
+    }
+
+    private List<String> evictOverweight(List<String> victims) {
+        while(windowUsed + probationUsed + protectedUsed > maximumWeight) {
+            String victim = coldest();
+            if(victim == null) break;
+            remove(victim);
+            victims.add(victim);
+        }
+        return victims;
+    }
+
+    // Probation first, then protected, and the window last
+    private String coldest() {
+        if(!probation.isEmpty()) return first(probation);
+        if(!protectedKeys.isEmpty()) return first(protectedKeys);
+        if(!window.isEmpty()) return first(window);
+        return null;
+    }
+
+    private static String first(LinkedHashSet<String> keys) {
+        return keys.iterator().next();
+    }
+
+    /***
+     * A count-min sketch of 4 bit counters, 16 to a long. All
+     * counters are halved once enough increments were made, so
+     * keys that were popular long ago fade out.
+     */
+    private static class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private int size = 0;
+
+        private FrequencySketch(int expectedKeys) {
+            int length = Integer.highestOneBit(Math.max(16, Math.min(expectedKeys, 1 << 28)) - 1) << 1;
+            this.table = new long[length];
+            this.mask = length - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, Math.max(10, 10L * expectedKeys));
+        }
+
+        private int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = 15;
+            for(int i = 0; i < 4; i++) {
+                int offset = (start + i) << 2;
+                int count = (int) ((table[indexOf(hash, i)] >>> offset) & 15L);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        private void increment(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for(int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                if(((table[index] >>> offset) & 15L) != 15L) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if(added && ++size == sampleSize) reset();
+        }
+
+        private void reset() {
+            for(int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            long value = (hash + SEEDS[row]) * SEEDS[row];
+            value += value >>> 32;
+            return (int) value & mask;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+
+    }
+
+}
@@ -0,0 +1,208 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.JsonObject;
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.FileSection;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BTreeLoaderTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void cacheStaysBoundedPastDirtyPages() throws Exception {
+        BTreeLoader loader = new BTreeLoader(folder.resolve("data.db").toString(), 16);
+        loader.readFile();
+        for(int i = 0; i < 5000; i++) {
+            loader.put(section(loader, "key" + i, 100));
+        }
+        loader.saveSections();
+        assertTrue(loader.getCachedPages() <= 16);
+
+        // A few dirty pages at the cold end must not stop clean ones from being evicted
+        loader.put(section(loader, "key0", 100));
+        loader.put(section(loader, "key1", 100));
+        for(int i = 0; i < 5000; i += 10) {
+            assertNotNull(loader.get("key" + i));
+        }
+        assertTrue(loader.getCachedPages() <= 16, "Cached " + loader.getCachedPages() + " pages");
+    }
+
+    @Test
+    void changesBeforeReadFileOpenTheFile() throws Exception {
+        String file = folder.resolve("data.db").toString();
+        BTreeLoader loader = new BTreeLoader(file);
+        loader.readFile();
+        loader.put(section(loader, "kept", 10));
+        loader.saveSections();
+
+        BTreeLoader cleared = new BTreeLoader(file);
+        cleared.clear();
+        cleared.put(section(cleared, "added", 10));
+        cleared.saveSections();
+
+        BTreeLoader reopened = new BTreeLoader(file);
+        reopened.readFile();
+        assertEquals(1, reopened.size());
+        assertNull(reopened.get("kept"));
+        assertNotNull(reopened.get("added"));
+    }
+
+    @Test
+    void splitsAndOverflowValuesRoundTrip() throws Exception {
+        String file = folder.resolve("data.db").toString();
+        BTreeLoader loader = new BTreeLoader(file, 32);
+        loader.readFile();
+        Random random = new Random(1);
+        Map<String, Integer> expected = new TreeMap<>();
+        for(int i = 0; i < 3000; i++) {
+            String key = "key" + random.nextInt(100000);
+            // Every fiftieth value spans several overflow pages
+            int size = i % 50 == 0 ? 20000 : random.nextInt(300);
+            loader.put(section(loader, key, size));
+            expected.put(key, size);
+        }
+        loader.saveSections();
+
+        BTreeLoader reopened = new BTreeLoader(file, 32);
+        reopened.readFile();
+        assertSections(expected, reopened);
+
+        // Removing shrinks the leaves and frees the overflow pages
+        int index = 0;
+        for(String key : new ArrayList<>(expected.keySet())) {
+            if(index++ % 3 == 0) {
+                reopened.remove(key);
+                expected.remove(key);
+            }
+        }
+        for(int i = 0; i < 20; i++) {
+            reopened.put(section(reopened, "big" + i, 20000));
+            expected.put("big" + i, 20000);
+        }
+        reopened.saveSections();
+        assertSections(expected, reopened);
+
+        BTreeLoader again = new BTreeLoader(file, 32);
+        again.readFile();
+        assertSections(expected, again);
+    }
+
+    @Test
+    void interruptedSaveIsFinishedFromTheDoubleWriteFile() throws Exception {
+        Path file = folder.resolve("data.db");
+        Path before = folder.resolve("before.db");
+        BTreeLoader loader = new BTreeLoader(file.toString());
+        loader.readFile();
+        Map<String, Integer> expected = new TreeMap<>();
+        for(int i = 0; i < 500; i++) {
+            loader.put(section(loader, "key" + i, 100));
+            expected.put("key" + i, 100);
+        }
+        loader.saveSections();
+        Files.copy(file, before);
+
+        for(int i = 0; i < 500; i += 2) {
+            loader.put(section(loader, "key" + i, 2000));
+            expected.put("key" + i, 2000);
+        }
+        for(int i = 500; i < 1000; i++) {
+            loader.put(section(loader, "key" + i, 50));
+            expected.put("key" + i, 50);
+        }
+        loader.saveSections();
+
+        // A crash right after the double write file was forced, before any page was written in place
+        writeDoubleWriteFile(file, Files.readAllBytes(file), true);
+        Files.copy(before, file, StandardCopyOption.REPLACE_EXISTING);
+
+        BTreeLoader recovered = new BTreeLoader(file.toString());
+        recovered.readFile();
+        assertFalse(Files.exists(Path.of(file + ".dwb")));
+        assertSections(expected, recovered);
+    }
+
+    @Test
+    void incompleteDoubleWriteFileIsDropped() throws Exception {
+        Path file = folder.resolve("data.db");
+        BTreeLoader loader = new BTreeLoader(file.toString());
+        loader.readFile();
+        Map<String, Integer> expected = new TreeMap<>();
+        for(int i = 0; i < 200; i++) {
+            loader.put(section(loader, "key" + i, 100));
+            expected.put("key" + i, 100);
+        }
+        loader.saveSections();
+
+        // The pages of another tree, cut off before the checksum
+        BTreeLoader other = new BTreeLoader(folder.resolve("other.db").toString());
+        other.readFile();
+        other.put(section(other, "other", 100));
+        other.saveSections();
+        writeDoubleWriteFile(file, Files.readAllBytes(folder.resolve("other.db")), false);
+
+        BTreeLoader recovered = new BTreeLoader(file.toString());
+        recovered.readFile();
+        assertFalse(Files.exists(Path.of(file + ".dwb")));
+        assertSections(expected, recovered);
+    }
+
+    private static void writeDoubleWriteFile(Path file, byte[] data, boolean complete) throws Exception {
+        int pages = data.length / BTreeLoader.PAGE_SIZE;
+        CRC32 checksum = new CRC32();
+        try(DataOutputStream stream = new DataOutputStream(new FileOutputStream(file + ".dwb"))) {
+            stream.writeInt(pages);
+            for(int id = 0; id < pages; id++) {
+                stream.writeInt(id);
+                stream.write(data, id * BTreeLoader.PAGE_SIZE, BTreeLoader.PAGE_SIZE);
+                checksum.update(data, id * BTreeLoader.PAGE_SIZE, BTreeLoader.PAGE_SIZE);
+                if(!complete && id == pages / 2) return;
+            }
+            stream.writeLong(checksum.getValue());
+        }
+    }
+
+    private static void assertSections(Map<String, Integer> expected, BTreeLoader loader) {
+        assertEquals(expected.size(), loader.size());
+        List<String> keys = new ArrayList<>();
+        loader.keyIterator(null).forEachRemaining(keys::add);
+        assertEquals(new ArrayList<>(expected.keySet()), keys);
+        for(Map.Entry<String, Integer> entry : expected.entrySet()) {
+            FileSection section = loader.get(entry.getKey());
+            assertNotNull(section, "Missing " + entry.getKey());
+            JsonObject data = section.getData();
+            assertEquals(entry.getKey(), data.get("id").getAsString());
+            assertEquals((int) entry.getValue(), data.get("text").getAsString().length(), entry.getKey());
+        }
+    }
+
+    static FileSection section(BTreeLoader loader, String key, int size) {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", key);
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < size; i++) {
+            text.append((char) ('a' + (key.hashCode() + i & 0xffff) % 26));
+        }
+        data.addProperty("text", text.toString());
+        return new FileSection(key, data, loader);
+    }
+
+}
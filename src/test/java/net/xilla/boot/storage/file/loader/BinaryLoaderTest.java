@@ -0,0 +1,109 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.api.Pair;
+import net.xilla.boot.storage.file.FileSection;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryLoaderTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void codecRoundTripsEveryValueType() throws Exception {
+        BinaryCodec codec = new BinaryCodec();
+        JsonObject data = data(7);
+
+        Pair<String, JsonObject> decoded = codec.decode(codec.encode("key", data));
+        assertEquals("key", decoded.getKey());
+        assertEquals(data, decoded.getValue());
+    }
+
+    @Test
+    void sectionsRoundTripThroughTheFile() throws Exception {
+        String file = folder.resolve("data.bin").toString();
+        BinaryLoader loader = new BinaryLoader(file);
+        loader.readFile();
+        Map<String, JsonObject> expected = new HashMap<>();
+        for(int i = 0; i < 100; i++) {
+            JsonObject data = data(i);
+            loader.put(new FileSection("key" + i, data, loader));
+            expected.put("key" + i, data);
+        }
+        loader.saveSections();
+        assertSections(expected, open(file));
+
+        // Unchanged records are copied over, changed ones encoded again
+        BinaryLoader reopened = open(file);
+        for(int i = 0; i < 100; i += 3) {
+            JsonObject data = data(i + 1000);
+            reopened.put(new FileSection("key" + i, data, reopened));
+            expected.put("key" + i, data);
+        }
+        for(int i = 1; i < 100; i += 7) {
+            reopened.remove("key" + i);
+            expected.remove("key" + i);
+        }
+        reopened.saveSections();
+        assertSections(expected, reopened);
+        assertSections(expected, open(file));
+    }
+
+    private static BinaryLoader open(String file) throws Exception {
+        BinaryLoader loader = new BinaryLoader(file);
+        loader.readFile();
+        return loader;
+    }
+
+    private static void assertSections(Map<String, JsonObject> expected, BinaryLoader loader) {
+        assertEquals(expected.size(), loader.size());
+        for(Map.Entry<String, JsonObject> entry : expected.entrySet()) {
+            FileSection section = loader.get(entry.getKey());
+            assertNotNull(section, "Missing " + entry.getKey());
+            assertEquals(entry.getValue(), section.getData(), entry.getKey());
+        }
+    }
+
+    private static JsonObject data(int seed) {
+        JsonObject data = new JsonObject();
+        data.addProperty("int", seed);
+        data.addProperty("negative", -seed * 100_000L);
+        data.addProperty("long", Long.MAX_VALUE - seed);
+        data.addProperty("double", seed / 3.0);
+        data.addProperty("decimal", new BigDecimal("12345678901234567890.5").add(BigDecimal.valueOf(seed)));
+        data.addProperty("string", "value " + seed + " é中😀");
+        data.addProperty("empty", "");
+        data.addProperty("flag", seed % 2 == 0);
+        data.add("nothing", JsonNull.INSTANCE);
+
+        JsonArray array = new JsonArray();
+        array.add(seed);
+        array.add("text");
+        array.add(JsonNull.INSTANCE);
+        JsonObject nested = new JsonObject();
+        nested.addProperty("field" + seed % 4, seed);
+        array.add(nested);
+        data.add("array", array);
+        data.add("object", nested.deepCopy());
+        return data;
+    }
+
+}
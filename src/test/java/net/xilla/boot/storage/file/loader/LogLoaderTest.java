@@ -0,0 +1,177 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.JsonObject;
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.FileSection;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogLoaderTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void sectionsRoundTripAcrossSegments() throws Exception {
+        LogLoader loader = open();
+        Map<String, Integer> expected = new HashMap<>();
+        for(int i = 0; i < 200; i++) {
+            loader.put(section(loader, "key" + i, i));
+            expected.put("key" + i, i);
+        }
+        loader.saveSections();
+        assertTrue(segments() > 1, "Expected the log to roll over into more segments");
+
+        assertSections(expected, open());
+    }
+
+    @Test
+    void compactionDropsOverwrittenAndRemovedRecords() throws Exception {
+        LogLoader loader = open();
+        Map<String, Integer> expected = new HashMap<>();
+        for(int round = 0; round < 5; round++) {
+            for(int i = 0; i < 50; i++) {
+                loader.put(section(loader, "key" + i, round * 100 + i));
+                expected.put("key" + i, round * 100 + i);
+            }
+            loader.saveSections();
+        }
+        for(int i = 0; i < 50; i += 5) {
+            loader.remove("key" + i);
+            expected.remove("key" + i);
+        }
+        loader.saveSections();
+
+        long before = size();
+        loader.compact();
+        assertTrue(size() < before, "Compaction kept " + size() + " of " + before + " bytes");
+        assertSections(expected, loader);
+
+        // The compacted segment replays into the same sections
+        assertSections(expected, open());
+    }
+
+    @Test
+    void tornWriteIsCutOffOnRead() throws Exception {
+        LogLoader loader = open();
+        Map<String, Integer> expected = new HashMap<>();
+        for(int i = 0; i < 10; i++) {
+            loader.put(section(loader, "key" + i, i));
+            expected.put("key" + i, i);
+        }
+        loader.saveSections();
+
+        File[] files = folder.toFile().listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(files);
+        File last = files[0];
+        for(File file : files) {
+            if(file.getName().compareTo(last.getName()) > 0) last = file;
+        }
+        try(FileOutputStream stream = new FileOutputStream(last, true)) {
+            stream.write("{\"key\":\"key3\",\"data\":{\"va".getBytes(StandardCharsets.UTF_8));
+        }
+
+        LogLoader recovered = open();
+        assertSections(expected, recovered);
+
+        // Appending after the cut off record starts on a fresh line
+        recovered.put(section(recovered, "key3", 33));
+        expected.put("key3", 33);
+        recovered.saveSections();
+        assertSections(expected, open());
+    }
+
+    @Test
+    void savesWhileCompacting() throws Exception {
+        LogLoader loader = open();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread compactor = new Thread(() -> {
+            try {
+                while(running.get()) loader.compact();
+            } catch (Throwable ex) {
+                failure.set(ex);
+            }
+        });
+        compactor.start();
+
+        Map<String, Integer> expected = new HashMap<>();
+        try {
+            for(int round = 0; round < 100; round++) {
+                for(int i = 0; i < 20; i++) {
+                    String key = "key" + (round * 7 + i) % 60;
+                    if(i % 6 == 5) {
+                        loader.remove(key);
+                        expected.remove(key);
+                    } else {
+                        loader.put(section(loader, key, round * 100 + i));
+                        expected.put(key, round * 100 + i);
+                    }
+                }
+                loader.saveSections();
+            }
+        } finally {
+            running.set(false);
+            compactor.join();
+        }
+        assertNull(failure.get());
+
+        assertSections(expected, loader);
+        assertSections(expected, open());
+    }
+
+    private LogLoader open() throws Exception {
+        LogLoader loader = new LogLoader(folder.toString(), 512);
+        loader.setCompactionTime(0);
+        loader.readFile();
+        return loader;
+    }
+
+    private int segments() {
+        File[] files = folder.toFile().listFiles((dir, name) -> name.endsWith(".log"));
+        return files == null ? 0 : files.length;
+    }
+
+    private long size() {
+        long size = 0;
+        File[] files = folder.toFile().listFiles((dir, name) -> name.endsWith(".log"));
+        if(files != null) {
+            for(File file : files) size += file.length();
+        }
+        return size;
+    }
+
+    private static void assertSections(Map<String, Integer> expected, LogLoader loader) {
+        assertEquals(expected.size(), loader.size());
+        for(Map.Entry<String, Integer> entry : expected.entrySet()) {
+            FileSection section = loader.get(entry.getKey());
+            assertNotNull(section, "Missing " + entry.getKey());
+            assertEquals((int) entry.getValue(), section.getData().get("value").getAsInt(), entry.getKey());
+        }
+    }
+
+    private static FileSection section(LogLoader loader, String key, int value) {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", key);
+        data.addProperty("value", value);
+        return new FileSection(key, data, loader);
+    }
+
+}
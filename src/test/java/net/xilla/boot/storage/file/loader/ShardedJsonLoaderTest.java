@@ -0,0 +1,94 @@
+package net.xilla.boot.storage.file.loader;
+
+import com.google.gson.JsonObject;
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.FileSection;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedJsonLoaderTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void sectionsRoundTripThroughTheShards() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        ShardedJsonLoader loader = new ShardedJsonLoader(file, 4);
+        loader.readFile();
+        for(int i = 0; i < 200; i++) {
+            loader.put(section(loader, "key" + i, i));
+        }
+        loader.saveSections();
+
+        ShardedJsonLoader reopened = new ShardedJsonLoader(file, 4);
+        reopened.readFile();
+        assertEquals(200, reopened.size());
+        for(int i = 0; i < 200; i++) {
+            assertEquals(i, reopened.loadData(reopened.get("key" + i)).getData().get("value").getAsInt());
+        }
+    }
+
+    @Test
+    void shrinkingToOneShardKeepsTheSections() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        ShardedJsonLoader loader = new ShardedJsonLoader(file, 4);
+        loader.readFile();
+        for(int i = 0; i < 100; i++) {
+            loader.put(section(loader, "key" + i, i));
+        }
+        loader.saveSections();
+        assertTrue(ShardedJsonLoader.isSharded(file));
+        assertFalse(new File(file).exists());
+
+        ShardedJsonLoader single = new ShardedJsonLoader(file, 1);
+        single.readFile();
+        assertEquals(100, single.size());
+        assertTrue(new File(file).exists());
+        assertFalse(new File(folder.toFile(), "data.0.json").exists());
+
+        // The moved sections are in the plain file
+        JsonLoader plain = new JsonLoader(file);
+        plain.readFile();
+        assertEquals(100, plain.size());
+        assertEquals(42, plain.loadData(plain.get("key42")).getData().get("value").getAsInt());
+    }
+
+    @Test
+    void plainFileMovesIntoShards() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        JsonLoader plain = new JsonLoader(file);
+        plain.readFile();
+        for(int i = 0; i < 50; i++) {
+            plain.put(section(plain, "key" + i, i));
+        }
+        plain.saveSections();
+        assertFalse(ShardedJsonLoader.isSharded(file));
+
+        ShardedJsonLoader loader = new ShardedJsonLoader(file, 3);
+        loader.readFile();
+        assertEquals(50, loader.size());
+        assertTrue(ShardedJsonLoader.isSharded(file));
+        assertFalse(new File(file).exists());
+    }
+
+    private static FileSection section(FileLoader loader, String key, int value) {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", key);
+        data.addProperty("value", value);
+        return new FileSection(key, data, loader);
+    }
+
+}
@@ -0,0 +1,135 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.FileSection;
+import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.test.onedeep.TestObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManagerBatchTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void batchesRoundTripThroughTheFile() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, new JsonLoader(file));
+        manager.loadStorage();
+
+        List<TestObject> objects = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            objects.add(new TestObject("key" + i, "value" + i));
+        }
+        manager.putAll(objects);
+        Map<String, TestObject> named = new HashMap<>();
+        named.put("named", new TestObject("named", "value"));
+        manager.putAll(named);
+        manager.save();
+
+        CountingLoader loader = new CountingLoader(file);
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, loader);
+        reopened.loadStorage();
+        Map<String, TestObject> found = reopened.getAll(Arrays.asList("key1", "key50", "named", "missing", "key1"));
+        assertEquals(3, found.size());
+        assertEquals("value50", found.get("key50").getObjectName());
+        assertEquals("value", found.get("named").getObjectName());
+        assertFalse(found.containsKey("missing"));
+        // The unloaded objects are read in one go and stay loaded
+        assertEquals(1, loader.batches.get());
+        assertEquals(0, loader.singles.get());
+        assertTrue(reopened.getLoadedObjects().containsKey("key50"));
+
+        List<String> removed = new ArrayList<>();
+        for(int i = 0; i < 100; i += 2) {
+            removed.add("key" + i);
+        }
+        reopened.removeAll(removed);
+        assertTrue(reopened.getAll(removed).isEmpty());
+        reopened.save();
+
+        Manager<TestObject> again = new Manager<>(TestObject.class, new JsonLoader(file));
+        again.loadStorage();
+        assertEquals(51, again.keySet().size());
+        assertNull(again.get("key0"));
+        assertEquals("value1", again.get("key1").getObjectName());
+    }
+
+    @Test
+    void getAllMixesLoadedAndStoredObjects() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, new JsonLoader(file));
+        manager.loadStorage();
+        for(int i = 0; i < 20; i++) {
+            manager.put(new TestObject("key" + i, "value" + i));
+        }
+        manager.save();
+
+        CountingLoader loader = new CountingLoader(file);
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, loader);
+        reopened.loadStorage();
+        reopened.get("key3");
+        reopened.put(new TestObject("key4", "changed"));
+
+        List<String> keys = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            keys.add("key" + i);
+        }
+        Map<String, TestObject> found = reopened.getAll(keys);
+        assertEquals(20, found.size());
+        assertEquals("changed", found.get("key4").getObjectName());
+        assertEquals(18, loader.batchSections.get());
+    }
+
+    /***
+     * Counts how the manager asks for data.
+     */
+    private static class CountingLoader extends JsonLoader {
+
+        private final AtomicInteger singles = new AtomicInteger();
+
+        private final AtomicInteger batches = new AtomicInteger();
+
+        private final AtomicInteger batchSections = new AtomicInteger();
+
+        private boolean batching = false;
+
+        CountingLoader(String filePath) {
+            super(filePath);
+        }
+
+        @Override
+        public FileSection loadData(FileSection section) throws IOException {
+            if(!batching) singles.incrementAndGet();
+            return super.loadData(section);
+        }
+
+        @Override
+        public Map<String, FileSection> loadAllData(Collection<FileSection> sections) throws IOException {
+            batches.incrementAndGet();
+            batchSections.addAndGet(sections.size());
+            batching = true;
+            try {
+                return super.loadAllData(sections);
+            } finally {
+                batching = false;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,135 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.test.onedeep.TestObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManagerJournalTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void unsavedChangesAreReplayedAfterACrash() throws Exception {
+        Manager<TestObject> manager = open();
+        manager.put(new TestObject("saved", "first"));
+        manager.put(new TestObject("removed", "first"));
+        manager.save();
+
+        manager.put(new TestObject("saved", "second"));
+        manager.put(new TestObject("added", "second"));
+        manager.remove("removed");
+
+        // The manager is dropped without saving or closing the journal
+        Manager<TestObject> recovered = open();
+        assertEquals("second", recovered.get("saved").getObjectName());
+        assertEquals("second", recovered.get("added").getObjectName());
+        assertNull(recovered.get("removed"));
+        assertEquals(2, recovered.keySet().size());
+
+        // Once saved the replayed changes live in the file
+        recovered.save();
+        assertEquals(1, segments());
+        Manager<TestObject> reopened = open();
+        assertEquals("second", reopened.get("saved").getObjectName());
+        assertNull(reopened.get("removed"));
+    }
+
+    @Test
+    void saveDeletesTheSealedSegments() throws Exception {
+        Manager<TestObject> manager = open();
+        for(int round = 0; round < 3; round++) {
+            for(int i = 0; i < 20; i++) {
+                manager.put(new TestObject("key" + i, "round" + round));
+            }
+            manager.save();
+            assertEquals(1, segments(), "Sealed segments are left after save " + round);
+        }
+
+        Manager<TestObject> reopened = open();
+        assertEquals(20, reopened.keySet().size());
+        assertEquals("round2", reopened.get("key7").getObjectName());
+    }
+
+    @Test
+    void tornRecordIsSkipped() throws Exception {
+        Manager<TestObject> manager = open();
+        manager.put(new TestObject("kept", "journaled"));
+        manager.getJournal().close();
+
+        File[] files = journalFolder().listFiles((dir, name) -> name.endsWith(".journal"));
+        assertNotNull(files);
+        try(FileOutputStream stream = new FileOutputStream(files[files.length - 1], true)) {
+            stream.write("{\"key\":\"torn\",\"data\":{\"i".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Manager<TestObject> recovered = open();
+        assertEquals("journaled", recovered.get("kept").getObjectName());
+        assertNull(recovered.get("torn"));
+    }
+
+    @Test
+    void concurrentWritersShareGroupCommits() throws Exception {
+        Manager<TestObject> manager = open();
+        manager.getJournal().setCommitInterval(5);
+
+        List<Thread> writers = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            int writer = t;
+            Thread thread = new Thread(() -> {
+                for(int i = 0; i < 50; i++) {
+                    manager.put(new TestObject("writer" + writer + "-" + i, "value" + i));
+                }
+            });
+            writers.add(thread);
+            thread.start();
+        }
+        for(Thread thread : writers) thread.join();
+
+        Manager<TestObject> recovered = open();
+        assertEquals(400, recovered.keySet().size());
+        for(int t = 0; t < 8; t++) {
+            for(int i = 0; i < 50; i++) {
+                assertEquals("value" + i, recovered.get("writer" + t + "-" + i).getObjectName());
+            }
+        }
+    }
+
+    private Manager<TestObject> open() {
+        ManagerJournal journal = new ManagerJournal(journalFolder().toString());
+        // Every change is on disk before put returns, like a crash right after it
+        journal.setSynchronous(true);
+
+        Manager<TestObject> manager = new Manager<>(TestObject.class, new JsonLoader(folder.resolve("data.json").toString()));
+        manager.setJournal(journal);
+        manager.loadStorage();
+        return manager;
+    }
+
+    private File journalFolder() {
+        return folder.resolve("journal").toFile();
+    }
+
+    private int segments() {
+        File[] files = journalFolder().listFiles((dir, name) -> name.endsWith(".journal"));
+        return files == null ? 0 : files.length;
+    }
+
+}
@@ -0,0 +1,129 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.FileSection;
+import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.test.onedeep.TestObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManagerLoadingTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void concurrentMissesLoadOnce() throws Exception {
+        BlockingLoader loader = saved();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.loadStorage();
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<TestObject>> results = new ArrayList<>();
+            for(int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> manager.get("key")));
+            }
+            assertTrue(loader.blocked.await(10, TimeUnit.SECONDS));
+            // Gives the other threads time to miss the same key
+            Thread.sleep(200);
+            loader.resume.countDown();
+
+            TestObject first = results.get(0).get(10, TimeUnit.SECONDS);
+            assertEquals("stored", first.getObjectName());
+            for(Future<TestObject> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loader.loads.get());
+        assertSame(manager.get("key"), manager.getLoadedObjects().get("key"));
+    }
+
+    @Test
+    void putDuringALoadIsKept() throws Exception {
+        BlockingLoader loader = saved();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.loadStorage();
+
+        CompletableFuture<TestObject> loading = CompletableFuture.supplyAsync(() -> manager.get("key"));
+        assertTrue(loader.blocked.await(10, TimeUnit.SECONDS));
+        manager.put(new TestObject("key", "put"));
+        loader.resume.countDown();
+
+        // The stale copy from the file doesn't replace what was put
+        assertEquals("put", loading.get(10, TimeUnit.SECONDS).getObjectName());
+        assertEquals("put", manager.get("key").getObjectName());
+    }
+
+    @Test
+    void removeDuringALoadIsNotUndone() throws Exception {
+        BlockingLoader loader = saved();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.loadStorage();
+
+        CompletableFuture<TestObject> loading = CompletableFuture.supplyAsync(() -> manager.get("key"));
+        assertTrue(loader.blocked.await(10, TimeUnit.SECONDS));
+        manager.remove("key");
+        loader.resume.countDown();
+
+        assertNull(loading.get(10, TimeUnit.SECONDS));
+        assertNull(manager.get("key"));
+        assertFalse(manager.getLoadedObjects().containsKey("key"));
+    }
+
+    private BlockingLoader saved() {
+        String file = folder.resolve("data.json").toString();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, new JsonLoader(file));
+        manager.loadStorage();
+        manager.put(new TestObject("key", "stored"));
+        manager.save();
+        return new BlockingLoader(file);
+    }
+
+    /***
+     * Holds the first load until it is resumed, and counts the loads.
+     */
+    private static class BlockingLoader extends JsonLoader {
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        private final CountDownLatch resume = new CountDownLatch(1);
+
+        private final AtomicInteger loads = new AtomicInteger();
+
+        BlockingLoader(String filePath) {
+            super(filePath);
+        }
+
+        @Override
+        public FileSection loadData(FileSection section) throws IOException {
+            loads.incrementAndGet();
+            blocked.countDown();
+            try {
+                resume.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.loadData(section);
+        }
+
+    }
+
+}
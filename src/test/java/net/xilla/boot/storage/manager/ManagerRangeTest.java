@@ -0,0 +1,97 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.FileLoader;
+import net.xilla.boot.storage.file.loader.BTreeLoader;
+import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.test.onedeep.TestObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManagerRangeTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void rangesOfJsonLoader() {
+        checkRanges(new JsonLoader(folder.resolve("data.json").toString()));
+    }
+
+    @Test
+    void rangesOfBTreeLoader() {
+        checkRanges(new BTreeLoader(folder.resolve("data.db").toString()));
+    }
+
+    /***
+     * Mixes saved, unsaved, evicted and removed keys, and
+     * compares every range with a sorted set of the keys.
+     */
+    private void checkRanges(FileLoader loader) {
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.loadStorage();
+        TreeSet<String> expected = new TreeSet<>();
+
+        for(int i = 0; i < 300; i++) {
+            manager.put(new TestObject("user:" + i, "saved"));
+            expected.add("user:" + i);
+        }
+        manager.save();
+        for(int i = 0; i < 300; i += 3) {
+            manager.unloadObject("user:" + i);
+        }
+        for(int i = 300; i < 400; i++) {
+            manager.put(new TestObject("user:" + i, "unsaved"));
+            expected.add("user:" + i);
+        }
+        for(int i = 0; i < 50; i++) {
+            manager.put(new TestObject("group:" + i, "saved"));
+            expected.add("group:" + i);
+        }
+        for(int i = 0; i < 400; i += 7) {
+            manager.remove("user:" + i);
+            expected.remove("user:" + i);
+        }
+
+        assertEquals(new ArrayList<>(expected), list(manager.rangeKeys(null, null)));
+        assertEquals(new ArrayList<>(expected.subSet("user:1", "user:2")), list(manager.rangeKeys("user:1", "user:2")));
+        assertEquals(new ArrayList<>(expected.headSet("user:")), list(manager.rangeKeys(null, "user:")));
+        assertEquals(new ArrayList<>(expected.tailSet("user:35")), list(manager.rangeKeys("user:35", null)));
+        assertEquals(new ArrayList<>(expected.subSet("group:", "group;")), list(manager.prefixKeys("group:")));
+
+        List<String> prefixed = new ArrayList<>();
+        for(TestObject object : manager.prefix("user:3")) {
+            prefixed.add(object.getId());
+        }
+        assertEquals(new ArrayList<>(expected.subSet("user:3", "user:4")), prefixed);
+
+        assertEquals(new ArrayList<>(expected), manager.stream().map(TestObject::getId).collect(Collectors.toList()));
+        assertEquals(expected.size(), manager.parallelStream().count());
+
+        // The keys are the same once everything is saved and read again
+        manager.save();
+        manager.loadStorage();
+        assertEquals(new ArrayList<>(expected), list(manager.rangeKeys(null, null)));
+    }
+
+    private static List<String> list(Iterable<String> keys) {
+        List<String> list = new ArrayList<>();
+        keys.forEach(list::add);
+        return list;
+    }
+
+}
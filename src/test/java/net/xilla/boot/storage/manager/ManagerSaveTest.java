@@ -0,0 +1,129 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.test.onedeep.TestObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManagerSaveTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void clearWaitsForTheRunningSave() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        BlockingLoader loader = new BlockingLoader(file);
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.loadStorage();
+        for(int i = 0; i < 100; i++) {
+            manager.put(new TestObject("key" + i, "saved"));
+        }
+
+        loader.block = true;
+        CompletableFuture<Void> save = manager.saveAsync();
+        assertTrue(loader.blocked.await(10, TimeUnit.SECONDS));
+
+        Thread clearing = new Thread(manager::clear);
+        clearing.start();
+        clearing.join(200);
+        assertTrue(clearing.isAlive(), "clear() ran next to the save");
+
+        loader.resume.countDown();
+        save.get(10, TimeUnit.SECONDS);
+        clearing.join(10000);
+        assertFalse(clearing.isAlive());
+
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, new JsonLoader(file));
+        reopened.loadStorage();
+        assertEquals(0, reopened.keySet().size());
+    }
+
+    @Test
+    void busyExecutorDelaysTheSaveInsteadOfRunningItOnTheCaller() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        BlockingLoader loader = new BlockingLoader(file);
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.loadStorage();
+        manager.put(new TestObject("key", "saved"));
+
+        // Both the thread and the queue are taken by other work
+        CountDownLatch busy = new CountDownLatch(1);
+        ThreadPoolExecutor executor = StorageExecutor.create("Test save", 1, 1, new ThreadPoolExecutor.AbortPolicy());
+        executor.execute(() -> await(busy));
+        executor.execute(() -> await(busy));
+        manager.setSaveExecutor(executor);
+
+        CompletableFuture<Void> save = manager.saveAsync();
+        assertFalse(save.isDone());
+        assertNull(loader.savedOn);
+        // Requests made meanwhile share the save queued behind it
+        CompletableFuture<Void> queued = manager.saveAsync();
+        assertSame(queued, manager.saveAsync());
+
+        busy.countDown();
+        save.get(10, TimeUnit.SECONDS);
+        queued.get(10, TimeUnit.SECONDS);
+        assertNotNull(loader.savedOn);
+        assertNotEquals(Thread.currentThread(), loader.savedOn);
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /***
+     * Holds the first save while it writes the file.
+     */
+    static class BlockingLoader extends JsonLoader {
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        final CountDownLatch resume = new CountDownLatch(1);
+
+        volatile boolean block = false;
+
+        volatile Thread savedOn = null;
+
+        BlockingLoader(String filePath) {
+            super(filePath);
+        }
+
+        @Override
+        public void saveSections() throws FileException {
+            savedOn = Thread.currentThread();
+            if(block) {
+                block = false;
+                blocked.countDown();
+                try {
+                    resume.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.saveSections();
+        }
+
+    }
+
+}
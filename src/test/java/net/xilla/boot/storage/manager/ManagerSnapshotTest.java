@@ -0,0 +1,211 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.FileSection;
+import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.test.onedeep.TestObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManagerSnapshotTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void evictionDuringSnapshotSaveKeepsTheNewerValue() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        BlockingLoader loader = new BlockingLoader(file);
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.setSnapshotSaves(true);
+        manager.loadStorage();
+        manager.setMaximumWeight(1 << 20);
+
+        manager.put(new TestObject("blocker", "1"));
+        manager.put(new TestObject("edited", "1"));
+        manager.save();
+
+        // The snapshot takes version 2, the save stops before it is written
+        manager.put(new TestObject("edited", "2"));
+        loader.blockOn("blocker");
+        CompletableFuture<Void> save = manager.saveAsync();
+        assertTrue(loader.blocked.await(10, TimeUnit.SECONDS));
+
+        manager.put(new TestObject("edited", "3"));
+        // Leaves edited as the coldest object, so only it is evicted
+        manager.get("blocker");
+        assertEquals(1, manager.trim(1));
+        assertFalse(manager.getLoadedObjects().containsKey("edited"));
+
+        loader.resume.countDown();
+        save.get(10, TimeUnit.SECONDS);
+        manager.save();
+
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, new JsonLoader(file));
+        reopened.loadStorage();
+        assertEquals("3", reopened.get("edited").getObjectName());
+        assertEquals("1", reopened.get("blocker").getObjectName());
+    }
+
+    @Test
+    void putDuringSnapshotSaveIsSavedNextTime() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        BlockingLoader loader = new BlockingLoader(file);
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.setSnapshotSaves(true);
+        manager.setDirtyTracking(true);
+        manager.loadStorage();
+
+        manager.put(new TestObject("blocker", "1"));
+        manager.put(new TestObject("edited", "1"));
+        loader.blockOn("blocker");
+        CompletableFuture<Void> save = manager.saveAsync();
+        assertTrue(loader.blocked.await(10, TimeUnit.SECONDS));
+
+        manager.put(new TestObject("edited", "2"));
+        loader.resume.countDown();
+        save.get(10, TimeUnit.SECONDS);
+
+        // The running save wrote the object as it was when the save started
+        Manager<TestObject> saved = new Manager<>(TestObject.class, new JsonLoader(file));
+        saved.loadStorage();
+        assertEquals("1", saved.get("edited").getObjectName());
+
+        manager.save();
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, new JsonLoader(file));
+        reopened.loadStorage();
+        assertEquals("2", reopened.get("edited").getObjectName());
+    }
+
+    @Test
+    void removeDuringSnapshotSaveIsNotWrittenBack() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        BlockingLoader loader = new BlockingLoader(file);
+        Manager<TestObject> manager = new Manager<>(TestObject.class, loader);
+        manager.setSnapshotSaves(true);
+        manager.loadStorage();
+
+        manager.put(new TestObject("blocker", "1"));
+        manager.put(new TestObject("edited", "1"));
+        loader.blockOn("blocker");
+        CompletableFuture<Void> save = manager.saveAsync();
+        assertTrue(loader.blocked.await(10, TimeUnit.SECONDS));
+
+        manager.remove("edited");
+        loader.resume.countDown();
+        save.get(10, TimeUnit.SECONDS);
+
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, new JsonLoader(file));
+        reopened.loadStorage();
+        assertNull(reopened.get("edited"));
+        assertEquals("1", reopened.get("blocker").getObjectName());
+    }
+
+    @Test
+    void writersKeepRunningDuringSnapshotSaves() throws Exception {
+        String file = folder.resolve("data.json").toString();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, new JsonLoader(file));
+        manager.setSnapshotSaves(true);
+        manager.setDirtyTracking(true);
+        manager.loadStorage();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Map<String, String> expected = new ConcurrentHashMap<>();
+        List<Thread> writers = new ArrayList<>();
+        for(int t = 0; t < 4; t++) {
+            int writer = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(writer);
+                Map<String, String> own = new HashMap<>();
+                for(int i = 0; i < 2000; i++) {
+                    String key = "writer" + writer + "-" + random.nextInt(100);
+                    if(random.nextInt(4) == 0) {
+                        manager.remove(key);
+                        own.remove(key);
+                    } else {
+                        String name = "value" + i;
+                        manager.put(new TestObject(key, name));
+                        own.put(key, name);
+                    }
+                }
+                expected.putAll(own);
+            });
+            writers.add(thread);
+            thread.start();
+        }
+
+        Thread saver = new Thread(() -> {
+            while(running.get()) manager.save();
+        });
+        saver.start();
+        for(Thread thread : writers) thread.join();
+        running.set(false);
+        saver.join();
+        manager.save();
+
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, new JsonLoader(file));
+        reopened.loadStorage();
+        assertEquals(expected.size(), reopened.keySet().size());
+        for(Map.Entry<String, String> entry : expected.entrySet()) {
+            TestObject object = reopened.get(entry.getKey());
+            assertNotNull(object, "Missing " + entry.getKey());
+            assertEquals(entry.getValue(), object.getObjectName(), entry.getKey());
+        }
+    }
+
+    /***
+     * Holds the save thread while it writes one key.
+     */
+    private static class BlockingLoader extends JsonLoader {
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        private final CountDownLatch resume = new CountDownLatch(1);
+
+        private volatile String blockedKey = null;
+
+        BlockingLoader(String filePath) {
+            super(filePath);
+        }
+
+        void blockOn(String key) {
+            blockedKey = key;
+        }
+
+        @Override
+        public FileSection put(String key, FileSection section) {
+            if(key.equals(blockedKey)) {
+                blockedKey = null;
+                blocked.countDown();
+                try {
+                    resume.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.put(key, section);
+        }
+
+    }
+
+}
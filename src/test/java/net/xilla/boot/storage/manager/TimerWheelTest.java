@@ -0,0 +1,112 @@
+package net.xilla.boot.storage.manager;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    private static final long SECOND = 1000;
+
+    private static final long DAY = 24 * 60 * 60 * SECOND;
+
+    // Buckets of the lowest level span 1024 ms
+    private static final long BUCKET = 1024;
+
+    @Test
+    void timersCascadeDownAndFireOnTime() {
+        long start = 1_600_000_000_000L;
+        TimerWheel wheel = new TimerWheel(start);
+        Random random = new Random(1);
+        Map<String, Long> deadlines = new HashMap<>();
+        long[] ranges = {60 * SECOND, 60 * 60 * SECOND, 3 * DAY, 30 * DAY};
+        for(long range : ranges) {
+            for(int i = 0; i < 200; i++) {
+                String key = range + "-" + i;
+                long deadline = start + 1 + (long) (random.nextDouble() * range);
+                wheel.schedule(key, deadline, i % 2 == 0);
+                deadlines.put(key, deadline);
+            }
+        }
+
+        long now = start;
+        long end = start + 31 * DAY;
+        Set<String> fired = new HashSet<>();
+        while(now < end) {
+            // Small steps early on, larger ones once only far timers are left
+            long step = 1 + random.nextInt(now - start < DAY ? 5000 : 600_000);
+            now += step;
+            for(TimerWheel.Timer timer : wheel.advance(now)) {
+                long deadline = deadlines.get(timer.getKey());
+                assertTrue(deadline <= now, timer.getKey() + " fired early");
+                assertTrue(now - deadline < BUCKET + step, timer.getKey() + " fired " + (now - deadline) + " ms late");
+                assertTrue(fired.add(timer.getKey()), timer.getKey() + " fired twice");
+            }
+        }
+        assertEquals(deadlines.keySet(), fired);
+    }
+
+    @Test
+    void largeJumpFiresOnlyDueTimers() {
+        long start = 0;
+        TimerWheel wheel = new TimerWheel(start);
+        for(int i = 1; i <= 100; i++) {
+            wheel.schedule("key" + i, i * 60 * 60 * SECOND, false);
+        }
+
+        List<TimerWheel.Timer> due = wheel.advance(50 * 60 * 60 * SECOND);
+        Set<String> keys = new HashSet<>();
+        for(TimerWheel.Timer timer : due) keys.add(timer.getKey());
+        assertEquals(50, keys.size());
+        for(int i = 1; i <= 50; i++) {
+            assertTrue(keys.contains("key" + i), "key" + i + " didn't fire");
+        }
+
+        due = wheel.advance(200 * 60 * 60 * SECOND);
+        assertEquals(50, due.size());
+        assertTrue(wheel.advance(400 * 60 * 60 * SECOND).isEmpty());
+    }
+
+    @Test
+    void timersPastTheTopLevelWaitAndMoveAgain() {
+        TimerWheel wheel = new TimerWheel(0);
+        long deadline = 365 * DAY;
+        wheel.schedule("far", deadline, true);
+
+        long now = 0;
+        while(now + DAY < deadline) {
+            now += DAY;
+            assertTrue(wheel.advance(now).isEmpty(), "Fired after " + now / DAY + " days");
+        }
+        List<TimerWheel.Timer> due = wheel.advance(deadline + BUCKET);
+        assertEquals(1, due.size());
+        assertTrue(due.get(0).isRemoval());
+    }
+
+    @Test
+    void rescheduledAndCancelledTimers() {
+        TimerWheel wheel = new TimerWheel(0);
+        wheel.schedule("moved", 10 * SECOND, false);
+        wheel.schedule("cancelled", 10 * SECOND, false);
+        wheel.scheduleIfAbsent("kept", 10 * SECOND);
+
+        wheel.schedule("moved", 100 * SECOND, true);
+        wheel.cancel("cancelled");
+        // An idle timer doesn't replace the timer a key already has
+        wheel.scheduleIfAbsent("kept", 1000 * SECOND);
+
+        List<TimerWheel.Timer> due = wheel.advance(20 * SECOND);
+        assertEquals(1, due.size());
+        assertEquals("kept", due.get(0).getKey());
+        assertFalse(due.get(0).isRemoval());
+
+        due = wheel.advance(200 * SECOND);
+        assertEquals(1, due.size());
+        assertEquals("moved", due.get(0).getKey());
+        assertTrue(due.get(0).isRemoval());
+        assertTrue(wheel.advance(2000 * SECOND).isEmpty());
+    }
+
+}
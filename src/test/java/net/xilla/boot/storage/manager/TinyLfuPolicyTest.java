@@ -0,0 +1,114 @@
+package net.xilla.boot.storage.manager;
+
+import net.xilla.boot.XillaApplication;
+import net.xilla.boot.storage.file.loader.JsonLoader;
+import net.xilla.test.onedeep.TestObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TinyLfuPolicyTest {
+
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void initialize() {
+        XillaApplication.initialize(false);
+    }
+
+    @Test
+    void hotKeysSurviveAScan() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(100);
+        Set<String> kept = new HashSet<>();
+        for(int round = 0; round < 5; round++) {
+            for(int i = 0; i < 50; i++) {
+                String key = "hot" + i;
+                if(kept.contains(key)) {
+                    policy.recordAccess(key);
+                } else {
+                    admit(policy, kept, key, 1);
+                }
+            }
+        }
+
+        // Keys read once don't push out the ones used all the time
+        for(int i = 0; i < 10000; i++) {
+            admit(policy, kept, "scan" + i, 1);
+            assertTrue(policy.size() <= 100);
+        }
+        int hot = 0;
+        for(int i = 0; i < 50; i++) {
+            if(kept.contains("hot" + i)) hot++;
+        }
+        assertTrue(hot >= 45, "Only " + hot + " hot keys were kept");
+        assertEquals(kept.size(), policy.size());
+    }
+
+    @Test
+    void weightStaysBounded() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(1000, true, 100);
+        Set<String> kept = new HashSet<>();
+        for(int i = 0; i < 500; i++) {
+            admit(policy, kept, "key" + i, 10 + i % 90);
+            assertTrue(policy.getWeight() <= 1000, "Weight " + policy.getWeight());
+        }
+
+        // Growing a kept key evicts others to make room
+        String grown = kept.iterator().next();
+        admit(policy, kept, grown, 900);
+        assertTrue(policy.getWeight() <= 1000, "Weight " + policy.getWeight());
+        assertEquals(kept.size(), policy.size());
+    }
+
+    @Test
+    void shrinkFreesTheColdestKeys() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(10);
+        Set<String> kept = new HashSet<>();
+        for(int i = 0; i < 10; i++) {
+            admit(policy, kept, "key" + i, 1);
+        }
+        policy.recordAccess("key0");
+
+        List<String> victims = policy.shrink(3);
+        assertEquals(3, victims.size());
+        assertFalse(victims.contains("key0"));
+        assertEquals(7, policy.size());
+    }
+
+    @Test
+    void managerKeepsEvictedChanges() {
+        String file = folder.resolve("data.json").toString();
+        Manager<TestObject> manager = new Manager<>(TestObject.class, new JsonLoader(file));
+        manager.loadStorage();
+        manager.setMaximumSize(10);
+
+        for(int i = 0; i < 100; i++) {
+            manager.put(new TestObject("key" + i, "value" + i));
+            assertTrue(manager.getLoadedObjects().size() <= 10);
+        }
+        // Evicted objects were handed to the file loader and load again
+        for(int i = 0; i < 100; i++) {
+            assertEquals("value" + i, manager.get("key" + i).getObjectName());
+        }
+        manager.save();
+
+        Manager<TestObject> reopened = new Manager<>(TestObject.class, new JsonLoader(file));
+        reopened.loadStorage();
+        assertEquals(100, reopened.keySet().size());
+        assertEquals("value42", reopened.get("key42").getObjectName());
+    }
+
+    private static void admit(TinyLfuPolicy policy, Set<String> kept, String key, int weight) {
+        kept.add(key);
+        kept.removeAll(policy.admit(key, weight));
+    }
+
+}